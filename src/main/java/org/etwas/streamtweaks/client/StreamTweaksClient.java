@@ -1,15 +1,23 @@
 package org.etwas.streamtweaks.client;
 
+import java.time.Duration;
+
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 
+import org.etwas.streamtweaks.client.chat.ChatArchive;
+import org.etwas.streamtweaks.client.chat.ChatHistoryStore;
+import org.etwas.streamtweaks.client.chat.ChatMessageLog;
+import org.etwas.streamtweaks.client.chat.ChatReplyIndex;
+import org.etwas.streamtweaks.client.chat.ChatSearchIndex;
 import org.etwas.streamtweaks.client.commands.TwitchCommand;
 import org.etwas.streamtweaks.config.StreamTweaksConfig;
 import org.etwas.streamtweaks.twitch.service.TwitchService;
 
 import me.shedaniel.autoconfig.AutoConfig;
 import me.shedaniel.autoconfig.serializer.GsonConfigSerializer;
+import net.minecraft.util.ActionResult;
 
 public class StreamTweaksClient implements ClientModInitializer {
     @Override
@@ -17,6 +25,20 @@ public class StreamTweaksClient implements ClientModInitializer {
 
         AutoConfig.register(StreamTweaksConfig.class, GsonConfigSerializer::new);
 
+        ChatMessageLog.getInstance().addListener(ChatSearchIndex.getInstance());
+        ChatMessageLog.getInstance().addListener(ChatArchive.getInstance());
+        ChatMessageLog.getInstance().addListener(ChatReplyIndex.getInstance());
+
+        StreamTweaksConfig startupConfig = AutoConfig.getConfigHolder(StreamTweaksConfig.class).getConfig();
+        applyChatLogLimits(startupConfig);
+        AutoConfig.getConfigHolder(StreamTweaksConfig.class).registerSaveListener((holder, config) -> {
+            applyChatLogLimits(config);
+            return ActionResult.SUCCESS;
+        });
+
+        if (startupConfig.persistChatHistory)
+            ChatHistoryStore.getInstance().replayInto(ChatMessageLog.getInstance(), startupConfig.historyReplayCount);
+
         ClientPlayConnectionEvents.JOIN.register((handler, sender, client) -> {
             if (client.player == null)
                 return;
@@ -38,4 +60,9 @@ public class StreamTweaksClient implements ClientModInitializer {
             TwitchCommand.register(dispatcher);
         });
     }
+
+    private static void applyChatLogLimits(StreamTweaksConfig config) {
+        ChatMessageLog.getInstance().setByteBudget(Math.max(0, config.chatLogMegabytes) * 1024L * 1024L);
+        ChatMessageLog.getInstance().setMaxAge(Duration.ofMinutes(Math.max(0, config.chatMaxAgeMinutes)));
+    }
 }
@@ -0,0 +1,148 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.etwas.streamtweaks.StreamTweaks;
+import org.etwas.streamtweaks.client.chat.ChatArchive.ArchivedMessage;
+import org.etwas.streamtweaks.utils.ThreadPools;
+
+/**
+ * Archived messages of the shown channel that the overlay scrolls into once
+ * it runs past the oldest message still in {@link ChatMessageLog}. Older
+ * pages are read from {@link ChatArchive} in the background, since they may
+ * have to be inflated; messages the log evicts while some are loaded are
+ * picked up at once, so the scrolled lines stay put. Only used on the render
+ * thread.
+ */
+final class ArchiveScrollback {
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_MESSAGES = 1000;
+
+    private final ScheduledExecutorService loader = ThreadPools.singleScheduler("chat-archive-scrollback");
+    // Newest first.
+    private final List<ArchivedMessage> messages = new ArrayList<>();
+    private ChatMessage.Source source;
+    private String channelId;
+    // Everything archived for the channel from the oldest loaded message up
+    // to this sequence is loaded; -1 before the first page is requested.
+    private long loadedUpTo = -1;
+    private long logOldestSequence = -1;
+    private CompletableFuture<List<ArchivedMessage>> pendingPage;
+    private boolean exhausted;
+    private long moderationVersion;
+    private long version;
+
+    int size() {
+        return messages.size();
+    }
+
+    /**
+     * Returns the {@code index}-th newest loaded message.
+     */
+    ChatMessage get(int index) {
+        return messages.get(index).message();
+    }
+
+    /**
+     * Changes whenever the loaded messages do.
+     */
+    long version() {
+        return version;
+    }
+
+    void reset() {
+        if (pendingPage != null) {
+            pendingPage.cancel(false);
+            pendingPage = null;
+        }
+        if (!messages.isEmpty() || loadedUpTo >= 0) {
+            version++;
+        }
+        messages.clear();
+        loadedUpTo = -1;
+        logOldestSequence = -1;
+        exhausted = false;
+    }
+
+    /**
+     * Applies a page that finished loading and drops messages moderation has
+     * hidden since.
+     */
+    void poll() {
+        ChatArchive archive = ChatArchive.getInstance();
+        if (moderationVersion != archive.moderationVersion()) {
+            moderationVersion = archive.moderationVersion();
+            if (messages.removeIf(message -> archive.isModerated(message.message()))) {
+                version++;
+            }
+        }
+
+        if (pendingPage == null || !pendingPage.isDone()) {
+            return;
+        }
+        List<ArchivedMessage> page = pendingPage.exceptionally(e -> {
+            StreamTweaks.LOGGER.warn("Failed to read archived chat history", e);
+            return List.of();
+        }).join();
+        pendingPage = null;
+        if (page.size() < PAGE_SIZE) {
+            exhausted = true;
+        }
+        if (!page.isEmpty()) {
+            messages.addAll(page);
+            version++;
+        }
+    }
+
+    /**
+     * Follows the shown channel, whose oldest message in the log has
+     * {@code logOldestSequence}, and loads what the log evicted below it
+     * since the last call.
+     */
+    void follow(ChatMessage.Source source, String channelId, long logOldestSequence) {
+        if (source != this.source || !Objects.equals(channelId, this.channelId)) {
+            reset();
+            this.source = source;
+            this.channelId = channelId;
+        }
+        this.logOldestSequence = logOldestSequence;
+        if (loadedUpTo < 0 || logOldestSequence <= loadedUpTo) {
+            return;
+        }
+
+        List<ArchivedMessage> evicted = ChatArchive.getInstance().findInChannel(source, channelId, loadedUpTo - 1,
+                logOldestSequence, MAX_MESSAGES);
+        loadedUpTo = logOldestSequence;
+        if (evicted.isEmpty()) {
+            return;
+        }
+        messages.addAll(0, evicted);
+        if (messages.size() > MAX_MESSAGES) {
+            messages.subList(MAX_MESSAGES, messages.size()).clear();
+            exhausted = false;
+        }
+        version++;
+    }
+
+    /**
+     * Starts loading the page below the oldest loaded message, unless one is
+     * loading already or the archive has nothing older.
+     */
+    void requestOlder() {
+        if (logOldestSequence < 0 || pendingPage != null || exhausted || messages.size() >= MAX_MESSAGES) {
+            return;
+        }
+        if (loadedUpTo < 0) {
+            loadedUpTo = logOldestSequence;
+        }
+        long before = messages.isEmpty() ? loadedUpTo : messages.get(messages.size() - 1).sequence();
+        ChatMessage.Source pageSource = source;
+        String pageChannelId = channelId;
+        pendingPage = CompletableFuture.supplyAsync(() -> ChatArchive.getInstance()
+                .findInChannel(pageSource, pageChannelId, -1, before, PAGE_SIZE), loader);
+    }
+}
@@ -0,0 +1,506 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.etwas.streamtweaks.StreamTweaks;
+import org.etwas.streamtweaks.client.chat.ChatterRegistry.ChatterIdentity;
+import org.etwas.streamtweaks.config.StreamTweaksConfig;
+import org.etwas.streamtweaks.utils.ThreadPools;
+
+import me.shedaniel.autoconfig.AutoConfig;
+import net.minecraft.text.TextColor;
+
+/**
+ * Keeps messages evicted from {@link ChatMessageLog} in off-heap slabs so a
+ * long history stays searchable, and scrollable in the overlay, without
+ * growing the game's heap. A record is the message's log sequence, the
+ * receive time, indexes into its slab's tables of chatters and channels,
+ * the colour, flags, the message id and UTF-8 body and the fragments;
+ * {@link ChatMessage} objects are only rebuilt while a search looks at them.
+ * The tables leave with their slab, so they never outgrow the archive.
+ * <p>
+ * Records go into the open slab; once it is full it is sealed and deflated on
+ * a background thread, and only inflated again while a search reads it. The
+ * oldest slabs are dropped once the configured budget is spent.
+ * <p>
+ * Records are never rewritten, so moderation leaves tombstones instead:
+ * deleted message ids and the times chatters and channels were cleared.
+ * Searches skip the records they cover, and a tombstone is forgotten once
+ * every record older than it has been dropped.
+ */
+public final class ChatArchive implements ChatMessageLog.Listener {
+    private static final int SLAB_SIZE = 256 * 1024;
+    private static final long MEBIBYTE = 1024 * 1024;
+    private static final byte FLAG_ACTION = 1;
+    private static final byte FLAG_REPLY = 2;
+    private static final int SOURCE_SHIFT = 2;
+    private static final int CHATTER_INDEX_OFFSET = Long.BYTES * 2;
+    private static final int CHANNEL_INDEX_OFFSET = CHATTER_INDEX_OFFSET + Integer.BYTES;
+    private static final ChatMessage.Source[] SOURCES = ChatMessage.Source.values();
+    private static final ChatArchive INSTANCE = new ChatArchive();
+
+    private final Deque<Slab> slabs = new ArrayDeque<>();
+    // Epoch milliseconds of each tombstone.
+    private final Map<String, Long> deletedIds = new HashMap<>();
+    private final Map<ChatterKey, Long> clearedChatters = new HashMap<>();
+    private final Map<ChannelKey, Long> clearedChannels = new HashMap<>();
+    private volatile long moderationVersion;
+    private final ScheduledExecutorService compressor = ThreadPools.singleScheduler("chat-archive-compressor");
+    // Only used on the compressor thread; deflate can grow incompressible
+    // input slightly.
+    private final ByteBuffer deflated = ByteBuffer.allocate(SLAB_SIZE + SLAB_SIZE / 1000 + 64);
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private long storedBytes;
+    private int size;
+    // The slab the last search inflated, since repeated searches start from
+    // the same newest slabs.
+    private volatile InflatedSlab lastInflated;
+
+    private static final class Slab {
+        private int[] offsets = new int[1024];
+        private int count;
+        // Records stay raw while the slab is open and until the compressor
+        // has deflated it; buffers are never reused, so readers holding
+        // either one can keep reading it.
+        private volatile ByteBuffer raw;
+        private volatile ByteBuffer compressed;
+        private int rawLength;
+        private boolean dropped;
+        // Parked channels are archived late, so records are not quite in
+        // receive order.
+        private long oldestMillis = Long.MAX_VALUE;
+        private long minSequence = Long.MAX_VALUE;
+        private long maxSequence = Long.MIN_VALUE;
+        // Copied into immutable lists once the slab is sealed.
+        private List<ChatterIdentity> chatters = new ArrayList<>();
+        private Map<ChatterIdentity, Integer> chatterIndices = new HashMap<>();
+        private List<String> channels = new ArrayList<>();
+        private Map<String, Integer> channelIndices = new HashMap<>();
+
+        private Slab(ByteBuffer raw) {
+            this.raw = raw;
+        }
+
+        private int chatterIndex(ChatterIdentity chatter) {
+            return chatterIndices.computeIfAbsent(chatter, key -> {
+                chatters.add(key);
+                return chatters.size() - 1;
+            });
+        }
+
+        private int channelIndex(String channelId) {
+            return channelIndices.computeIfAbsent(channelId, key -> {
+                channels.add(key);
+                return channels.size() - 1;
+            });
+        }
+
+        private void freezeTables() {
+            chatters = List.copyOf(chatters);
+            channels = List.copyOf(channels);
+            chatterIndices = null;
+            channelIndices = null;
+        }
+
+        private void add(int offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        private int storedBytes() {
+            ByteBuffer deflatedRecords = compressed;
+            return deflatedRecords != null ? deflatedRecords.capacity() : SLAB_SIZE;
+        }
+    }
+
+    private record ChannelKey(ChatMessage.Source source, String channelId) {
+    }
+
+    private record ChatterKey(ChatMessage.Source source, String channelId, String userId) {
+    }
+
+    private record Tombstones(Map<String, Long> deletedIds, Map<ChatterKey, Long> clearedChatters,
+            Map<ChannelKey, Long> clearedChannels) {
+        private boolean covers(ChatMessage message) {
+            if (message.messageId() != null && deletedIds.containsKey(message.messageId())) {
+                return true;
+            }
+            long millis = message.receivedAt().toEpochMilli();
+            Long channelCleared = clearedChannels.get(new ChannelKey(message.source(), message.channelId()));
+            if (channelCleared != null && millis <= channelCleared) {
+                return true;
+            }
+            if (message.chatter() == null || clearedChatters.isEmpty()) {
+                return false;
+            }
+            Long chatterCleared = clearedChatters.get(
+                    new ChatterKey(message.source(), message.channelId(), message.chatter().userId()));
+            return chatterCleared != null && millis <= chatterCleared;
+        }
+    }
+
+    private record SlabSnapshot(ByteBuffer raw, ByteBuffer compressed, int rawLength, int[] offsets, int count,
+            long minSequence, long maxSequence, List<ChatterIdentity> chatters, List<String> channels) {
+    }
+
+    /**
+     * Called for each record a scan decodes; returns whether to go on.
+     */
+    private interface RecordVisitor {
+        boolean visit(long sequence, ChatMessage message);
+    }
+
+    /**
+     * An archived message and the sequence it had in {@link ChatMessageLog}.
+     */
+    public record ArchivedMessage(long sequence, ChatMessage message) {
+    }
+
+    private record InflatedSlab(ByteBuffer compressed, ByteBuffer records) {
+    }
+
+    private ChatArchive() {
+    }
+
+    public static ChatArchive getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void onAppend(long sequence, ChatMessage message) {
+    }
+
+    @Override
+    public void onRemove(long sequence, ChatMessage message) {
+        // Removed messages never reach the archive, and a message replaced
+        // under the same id must stay searchable, so only the moderation
+        // callbacks below leave tombstones.
+    }
+
+    @Override
+    public synchronized void onDeleted(String messageId) {
+        if (!slabs.isEmpty()) {
+            deletedIds.put(messageId, System.currentTimeMillis());
+            moderationVersion++;
+        }
+    }
+
+    @Override
+    public synchronized void onChatterCleared(ChatMessage.Source source, String channelId, String chatterUserId) {
+        if (!slabs.isEmpty()) {
+            clearedChatters.put(new ChatterKey(source, channelId, chatterUserId), System.currentTimeMillis());
+            moderationVersion++;
+        }
+    }
+
+    @Override
+    public synchronized void onChannelCleared(ChatMessage.Source source, String channelId) {
+        if (!slabs.isEmpty()) {
+            clearedChannels.put(new ChannelKey(source, channelId), System.currentTimeMillis());
+            moderationVersion++;
+        }
+    }
+
+    @Override
+    public void onEvict(long sequence, ChatMessage message) {
+        int budget = AutoConfig.getConfigHolder(StreamTweaksConfig.class).getConfig().archivedHistoryMegabytes;
+        append(sequence, message, Math.max(0, budget) * MEBIBYTE);
+    }
+
+    /**
+     * Number of archived messages.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Off-heap bytes held by the archive, after compression.
+     */
+    public synchronized long storedBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Returns up to {@code limit} archived messages accepted by
+     * {@code filter}, newest first. The scan runs without holding the
+     * archive's lock, so it may be called from any thread while messages
+     * keep being archived.
+     */
+    public List<ChatMessage> findNewest(Predicate<ChatMessage> filter, int limit) {
+        List<ChatMessage> hits = new ArrayList<>();
+        if (limit > 0) {
+            scan(Long.MIN_VALUE, Long.MAX_VALUE, null, (sequence, message) -> {
+                if (filter.test(message)) {
+                    hits.add(message);
+                }
+                return hits.size() < limit;
+            });
+        }
+        return hits;
+    }
+
+    /**
+     * Returns up to {@code limit} archived messages of one channel whose log
+     * sequence lies strictly between {@code afterSequence} and
+     * {@code beforeSequence}, newest first. Slabs outside that range are
+     * skipped without being inflated. Like {@link #findNewest}, it may be
+     * called from any thread.
+     */
+    public List<ArchivedMessage> findInChannel(ChatMessage.Source source, String channelId, long afterSequence,
+            long beforeSequence, int limit) {
+        List<ArchivedMessage> hits = new ArrayList<>();
+        if (limit > 0) {
+            scan(afterSequence, beforeSequence, channelId, (sequence, message) -> {
+                if (message.source() == source) {
+                    hits.add(new ArchivedMessage(sequence, message));
+                }
+                return hits.size() < limit;
+            });
+        }
+        return hits;
+    }
+
+    /**
+     * Changes whenever moderation hides more archived messages.
+     */
+    public long moderationVersion() {
+        return moderationVersion;
+    }
+
+    /**
+     * Returns whether moderation has hidden {@code message} since it was
+     * archived.
+     */
+    public synchronized boolean isModerated(ChatMessage message) {
+        return new Tombstones(deletedIds, clearedChatters, clearedChannels).covers(message);
+    }
+
+    /**
+     * Visits the records with a sequence strictly between the bounds, newest
+     * slab first, skipping those of other channels if {@code channelId} is
+     * not {@code null} and those hidden by moderation.
+     */
+    private void scan(long afterSequence, long beforeSequence, String channelId, RecordVisitor visitor) {
+        List<SlabSnapshot> snapshot = new ArrayList<>();
+        Tombstones tombstones;
+        synchronized (this) {
+            for (Slab slab : slabs) {
+                ByteBuffer raw = slab.raw;
+                // Copying is free for sealed slabs, whose tables are
+                // already immutable.
+                snapshot.add(new SlabSnapshot(raw != null ? raw.duplicate() : null, slab.compressed,
+                        slab.rawLength, slab.offsets, slab.count, slab.minSequence, slab.maxSequence,
+                        List.copyOf(slab.chatters), List.copyOf(slab.channels)));
+            }
+            tombstones = new Tombstones(Map.copyOf(deletedIds), Map.copyOf(clearedChatters),
+                    Map.copyOf(clearedChannels));
+        }
+
+        for (int s = snapshot.size() - 1; s >= 0; s--) {
+            SlabSnapshot slab = snapshot.get(s);
+            int channelIndex = channelId != null ? slab.channels().indexOf(channelId) : -1;
+            if (slab.maxSequence() <= afterSequence || slab.minSequence() >= beforeSequence
+                    || channelId != null && channelIndex < 0) {
+                continue;
+            }
+            ByteBuffer records = slab.raw() != null ? slab.raw() : inflate(slab);
+            if (records == null) {
+                continue;
+            }
+            for (int i = slab.count() - 1; i >= 0; i--) {
+                int offset = slab.offsets()[i];
+                long sequence = records.getLong(offset);
+                if (sequence <= afterSequence || sequence >= beforeSequence
+                        || channelId != null && records.getInt(offset + CHANNEL_INDEX_OFFSET) != channelIndex) {
+                    continue;
+                }
+                ChatMessage message = decode(records.position(offset + Long.BYTES), slab.chatters(),
+                        slab.channels());
+                if (!tombstones.covers(message) && !visitor.visit(sequence, message)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void append(long sequence, ChatMessage message, long budgetBytes) {
+        if (budgetBytes == 0) {
+            while (!slabs.isEmpty()) {
+                dropOldest();
+            }
+            return;
+        }
+
+        scratch.clear();
+        scratch = encode(sequence, message, scratch);
+        scratch.flip();
+        if (scratch.remaining() > SLAB_SIZE) {
+            return;
+        }
+
+        Slab tail = slabs.peekLast();
+        if (tail == null || tail.raw.remaining() < scratch.remaining()) {
+            if (tail != null) {
+                seal(tail);
+            }
+            tail = new Slab(ByteBuffer.allocateDirect(SLAB_SIZE));
+            slabs.addLast(tail);
+            storedBytes += SLAB_SIZE;
+        }
+        // The table indexes are only known once the slab is.
+        if (message.chatter() != null) {
+            scratch.putInt(CHATTER_INDEX_OFFSET, tail.chatterIndex(message.chatter()));
+        }
+        if (message.channelId() != null) {
+            scratch.putInt(CHANNEL_INDEX_OFFSET, tail.channelIndex(message.channelId()));
+        }
+        tail.add(tail.raw.position());
+        tail.oldestMillis = Math.min(tail.oldestMillis, message.receivedAt().toEpochMilli());
+        tail.minSequence = Math.min(tail.minSequence, sequence);
+        tail.maxSequence = Math.max(tail.maxSequence, sequence);
+        tail.raw.put(scratch);
+        size++;
+
+        while (storedBytes > budgetBytes && slabs.size() > 1) {
+            dropOldest();
+        }
+    }
+
+    private void dropOldest() {
+        Slab oldest = slabs.pollFirst();
+        oldest.dropped = true;
+        storedBytes -= oldest.storedBytes();
+        size -= oldest.count;
+        pruneTombstones();
+    }
+
+    private void pruneTombstones() {
+        long oldest = Long.MAX_VALUE;
+        for (Slab slab : slabs) {
+            oldest = Math.min(oldest, slab.oldestMillis);
+        }
+        long oldestMillis = oldest;
+        deletedIds.values().removeIf(millis -> millis < oldestMillis);
+        clearedChatters.values().removeIf(millis -> millis < oldestMillis);
+        clearedChannels.values().removeIf(millis -> millis < oldestMillis);
+    }
+
+    private void seal(Slab slab) {
+        slab.rawLength = slab.raw.position();
+        slab.freezeTables();
+        ByteBuffer records = slab.raw.duplicate().flip();
+        compressor.execute(() -> compress(slab, records));
+    }
+
+    private void compress(Slab slab, ByteBuffer records) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(records);
+            deflater.finish();
+            deflated.clear();
+            while (!deflater.finished() && deflated.hasRemaining()) {
+                deflater.deflate(deflated);
+            }
+            // Leave incompressible slabs raw.
+            if (!deflater.finished() || deflated.position() >= slab.rawLength) {
+                return;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ByteBuffer compressed = ByteBuffer.allocateDirect(deflated.position());
+        compressed.put(deflated.flip()).flip();
+        synchronized (this) {
+            if (slab.dropped) {
+                return;
+            }
+            storedBytes -= slab.storedBytes();
+            slab.compressed = compressed;
+            slab.raw = null;
+            storedBytes += compressed.capacity();
+        }
+    }
+
+    private ByteBuffer inflate(SlabSnapshot slab) {
+        InflatedSlab cached = lastInflated;
+        if (cached != null && cached.compressed() == slab.compressed()) {
+            return cached.records().duplicate();
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(slab.compressed().duplicate());
+            ByteBuffer records = ByteBuffer.allocate(slab.rawLength());
+            while (!inflater.finished() && records.hasRemaining()) {
+                if (inflater.inflate(records) == 0 && inflater.needsInput()) {
+                    break;
+                }
+            }
+            lastInflated = new InflatedSlab(slab.compressed(), records);
+            return records.duplicate();
+        } catch (DataFormatException e) {
+            StreamTweaks.LOGGER.warn("Failed to inflate archived chat history", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Encodes {@code message} with no chatter or channel; {@link #append}
+     * fills the table indexes in.
+     */
+    private static ByteBuffer encode(long sequence, ChatMessage message, ByteBuffer buffer) {
+        buffer = ChatMessageCodec.ensure(buffer, Long.BYTES * 2 + Integer.BYTES * 3 + 1);
+        buffer.putLong(sequence);
+        buffer.putLong(message.receivedAt().toEpochMilli());
+        buffer.putInt(-1);
+        buffer.putInt(-1);
+        buffer.putInt(message.color() != null ? message.color().getRgb() : ChatMessageCodec.NO_COLOR);
+        buffer.put((byte) (message.source().ordinal() << SOURCE_SHIFT | (message.action() ? FLAG_ACTION : 0)
+                | (message.reply() != null ? FLAG_REPLY : 0)));
+        buffer = ChatMessageCodec.putString(buffer, message.messageId());
+        buffer = ChatMessageCodec.putString(buffer, message.body());
+        buffer = ChatMessageCodec.encodeFragments(message.fragments(), buffer);
+        return message.reply() != null ? ChatMessageCodec.encodeReply(message.reply(), buffer) : buffer;
+    }
+
+    /**
+     * Decodes the record at the buffer's position, just past its sequence.
+     */
+    private static ChatMessage decode(ByteBuffer buffer, List<ChatterIdentity> chatterTable,
+            List<String> channelTable) {
+        Instant receivedAt = Instant.ofEpochMilli(buffer.getLong());
+        int chatterIndex = buffer.getInt();
+        int channelIndex = buffer.getInt();
+        int rgb = buffer.getInt();
+        int flags = buffer.get();
+        String messageId = ChatMessageCodec.getString(buffer);
+        String body = ChatMessageCodec.getString(buffer);
+        ChatMessage.Fragment[] fragments = ChatMessageCodec.decodeFragments(buffer);
+        ChatMessage.Reply reply = (flags & FLAG_REPLY) != 0 ? ChatMessageCodec.decodeReply(buffer) : null;
+
+        ChatterIdentity chatter = chatterIndex >= 0 ? chatterTable.get(chatterIndex) : null;
+        String channelId = channelIndex >= 0 ? channelTable.get(channelIndex) : null;
+        ChatMessage.Source source = SOURCES[(flags & 0xFF) >>> SOURCE_SHIFT];
+        return new ChatMessage(messageId, chatter, body, fragments, (flags & FLAG_ACTION) != 0,
+                rgb != ChatMessageCodec.NO_COLOR ? TextColor.fromRgb(rgb) : null, receivedAt, source, channelId, reply);
+    }
+}
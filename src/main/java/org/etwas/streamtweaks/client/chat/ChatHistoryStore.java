@@ -0,0 +1,389 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import org.etwas.streamtweaks.StreamTweaks;
+import org.etwas.streamtweaks.utils.ThreadPools;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+/**
+ * Persists stream chat to an append-only log of memory-mapped segment files
+ * under the config directory, so history survives a restart. A segment starts
+ * with a magic number and the format version, and segments in any other
+ * format are skipped. Each record is a length prefix, a kind byte and either a {@link ChatMessageCodec} payload
+ * or a moderation tombstone; a zero length marks the end of a segment.
+ * Appends are handed to a background writer and never block the caller.
+ * Replay maps the newest segments, reads them newest first so tombstones are
+ * seen before the messages they hide, and only decodes the records it
+ * returns.
+ */
+public final class ChatHistoryStore {
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long DELETE_RETRY_SECONDS = 30;
+    private static final int MAGIC = 0x53544348;
+    // Covers the record kinds and the ChatMessageCodec layout; bump it
+    // whenever either changes.
+    private static final byte FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = Integer.BYTES + 1;
+
+    private static final byte KIND_MESSAGE = 0;
+    private static final byte KIND_DELETE = 1;
+    private static final byte KIND_CLEAR_CHATTER = 2;
+    private static final byte KIND_CLEAR_CHANNEL = 3;
+    private static final ChatMessage.Source[] SOURCES = ChatMessage.Source.values();
+
+    private static final ChatHistoryStore INSTANCE = new ChatHistoryStore();
+
+    private final Path directory = FabricLoader.getInstance().getConfigDir().resolve(StreamTweaks.MOD_ID)
+            .resolve("history");
+    private final ScheduledExecutorService writer = ThreadPools.singleScheduler("chat-history-writer");
+
+    // Writer thread only.
+    private MappedByteBuffer segment;
+    private long segmentIndex = -1;
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private boolean failed;
+    private boolean deleteRetryScheduled;
+
+    private ChatHistoryStore() {
+    }
+
+    public static ChatHistoryStore getInstance() {
+        return INSTANCE;
+    }
+
+    private record ChannelKey(ChatMessage.Source source, String channelId) {
+    }
+
+    private record ChatterKey(ChatMessage.Source source, String channelId, String userId) {
+    }
+
+    /**
+     * Queues a message to be written. Safe to call from any thread.
+     */
+    public void append(ChatMessage message) {
+        writer.execute(() -> write(buffer -> {
+            buffer.put(KIND_MESSAGE);
+            return ChatMessageCodec.encode(message, buffer);
+        }));
+    }
+
+    /**
+     * Records that a moderator deleted a message, so replay skips it.
+     */
+    public void appendDeletion(String messageId) {
+        if (messageId == null) {
+            return;
+        }
+        writer.execute(() -> write(buffer -> {
+            buffer.put(KIND_DELETE);
+            return ChatMessageCodec.putString(buffer, messageId);
+        }));
+    }
+
+    /**
+     * Records that a moderator cleared a chatter's messages in one channel.
+     */
+    public void appendChatterClear(ChatMessage.Source source, String channelId, String chatterUserId) {
+        if (chatterUserId == null) {
+            return;
+        }
+        writer.execute(() -> write(buffer -> {
+            buffer.put(KIND_CLEAR_CHATTER);
+            buffer.put((byte) source.ordinal());
+            buffer = ChatMessageCodec.putString(buffer, channelId);
+            return ChatMessageCodec.putString(buffer, chatterUserId);
+        }));
+    }
+
+    /**
+     * Records that a moderator cleared one channel.
+     */
+    public void appendChannelClear(ChatMessage.Source source, String channelId) {
+        writer.execute(() -> write(buffer -> {
+            buffer.put(KIND_CLEAR_CHANNEL);
+            buffer.put((byte) source.ordinal());
+            return ChatMessageCodec.putString(buffer, channelId);
+        }));
+    }
+
+    /**
+     * Reads the newest {@code count} stored messages in the background and
+     * adds them to {@code log}, oldest first.
+     */
+    public void replayInto(ChatMessageLog log, int count) {
+        writer.execute(() -> {
+            List<ChatMessage> messages = readTail(count);
+            messages.forEach(log::add);
+            StreamTweaks.devLogger("Replayed %d chat history messages".formatted(messages.size()));
+        });
+    }
+
+    private void write(UnaryOperator<ByteBuffer> encoder) {
+        if (failed) {
+            return;
+        }
+
+        try {
+            scratch.clear();
+            scratch = encoder.apply(ChatMessageCodec.ensure(scratch, 2));
+            scratch.flip();
+            int length = scratch.remaining();
+            if (Integer.BYTES + length + Integer.BYTES > SEGMENT_SIZE) {
+                return;
+            }
+
+            if (segment == null) {
+                openTailSegment();
+            }
+            // Keep room for the zero length that terminates the segment.
+            if (segment.remaining() < Integer.BYTES + length + Integer.BYTES) {
+                rotate();
+            }
+            // The prefix goes in last so a torn write never looks like a record.
+            int offset = segment.position();
+            segment.put(offset + Integer.BYTES, scratch, 0, length);
+            segment.putInt(offset, length);
+            segment.position(offset + Integer.BYTES + length);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            StreamTweaks.LOGGER.error("Failed to write chat history; persistence is disabled until restart", e);
+        }
+    }
+
+    private void openTailSegment() throws IOException {
+        Files.createDirectories(directory);
+        List<Long> indices = segmentIndices();
+        segmentIndex = indices.isEmpty() ? 0 : indices.get(indices.size() - 1);
+        segment = map(segmentIndex, FileChannel.MapMode.READ_WRITE);
+        if (!hasCurrentFormat(segment) && segment.getInt(0) != 0) {
+            // Written in another format; leave it and start a new segment.
+            segmentIndex++;
+            segment = map(segmentIndex, FileChannel.MapMode.READ_WRITE);
+        }
+        startSegment();
+    }
+
+    private void rotate() throws IOException {
+        segment.force();
+        segmentIndex++;
+        segment = map(segmentIndex, FileChannel.MapMode.READ_WRITE);
+        startSegment();
+        deleteOldSegments();
+    }
+
+    private void startSegment() {
+        if (!hasCurrentFormat(segment)) {
+            segment.put(Integer.BYTES, FORMAT_VERSION);
+            segment.putInt(0, MAGIC);
+        }
+        segment.position(endOfRecords(segment));
+    }
+
+    private static boolean hasCurrentFormat(ByteBuffer segment) {
+        return segment.limit() >= HEADER_SIZE && segment.getInt(0) == MAGIC
+                && segment.get(Integer.BYTES) == FORMAT_VERSION;
+    }
+
+    /**
+     * Deletes all but the newest segments. A segment that cannot be deleted
+     * yet is left for a later attempt instead of disabling persistence:
+     * Windows refuses to delete a file while it is mapped, and a mapping is
+     * only released once its buffer has been collected.
+     */
+    private void deleteOldSegments() {
+        boolean retry = false;
+        try {
+            List<Long> indices = segmentIndices();
+            for (int i = 0; i < indices.size() - MAX_SEGMENTS; i++) {
+                try {
+                    Files.deleteIfExists(segmentPath(indices.get(i)));
+                } catch (IOException e) {
+                    retry = true;
+                }
+            }
+        } catch (IOException e) {
+            retry = true;
+        }
+
+        if (retry && !deleteRetryScheduled) {
+            deleteRetryScheduled = true;
+            writer.schedule(() -> {
+                deleteRetryScheduled = false;
+                deleteOldSegments();
+            }, DELETE_RETRY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private List<ChatMessage> readTail(int count) {
+        if (count <= 0 || !Files.isDirectory(directory)) {
+            return List.of();
+        }
+        Deque<ChatMessage> messages = new ArrayDeque<>(count);
+        Tombstones tombstones = new Tombstones();
+
+        try {
+            List<Long> indices = segmentIndices();
+            for (int i = indices.size() - 1; i >= 0 && messages.size() < count; i--) {
+                MappedByteBuffer buffer = map(indices.get(i), FileChannel.MapMode.READ_ONLY);
+                if (!hasCurrentFormat(buffer)) {
+                    StreamTweaks.devLogger("Skipping chat history segment %d in another format"
+                            .formatted(indices.get(i)));
+                    continue;
+                }
+                List<Integer> offsets = recordOffsets(buffer);
+                for (int j = offsets.size() - 1; j >= 0 && messages.size() < count; j--) {
+                    ChatMessage message = readAt(buffer, offsets.get(j), tombstones);
+                    if (message != null && !tombstones.covers(message)) {
+                        messages.addFirst(message);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            StreamTweaks.LOGGER.error("Failed to read chat history", e);
+        }
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * Decodes the message at {@code offset}, or adds the tombstone there to
+     * {@code tombstones} and returns {@code null}.
+     */
+    private static ChatMessage readAt(ByteBuffer segment, int offset, Tombstones tombstones) {
+        int length = segment.getInt(offset);
+        ByteBuffer record = segment.slice(offset + Integer.BYTES, length);
+        try {
+            byte kind = record.get();
+            switch (kind) {
+                case KIND_MESSAGE -> {
+                    return ChatMessageCodec.decode(record);
+                }
+                case KIND_DELETE -> tombstones.deletedIds.add(ChatMessageCodec.getString(record));
+                case KIND_CLEAR_CHATTER -> {
+                    ChatMessage.Source source = sourceOf(record.get());
+                    String channelId = ChatMessageCodec.getString(record);
+                    String userId = ChatMessageCodec.getString(record);
+                    tombstones.clearedChatters.add(new ChatterKey(source, channelId, userId));
+                }
+                case KIND_CLEAR_CHANNEL -> {
+                    ChatMessage.Source source = sourceOf(record.get());
+                    tombstones.clearedChannels.add(new ChannelKey(source, ChatMessageCodec.getString(record)));
+                }
+                default -> throw new IllegalArgumentException("Unknown record kind " + kind);
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            StreamTweaks.LOGGER.warn("Skipping unreadable chat history record", e);
+        }
+        return null;
+    }
+
+    private static ChatMessage.Source sourceOf(byte ordinal) {
+        if (ordinal < 0 || ordinal >= SOURCES.length) {
+            throw new IllegalArgumentException("Unknown message source " + ordinal);
+        }
+        return SOURCES[ordinal];
+    }
+
+    /**
+     * Moderation seen so far while reading newest first; it hides the older
+     * messages read after it.
+     */
+    private static final class Tombstones {
+        private final Set<String> deletedIds = new HashSet<>();
+        private final Set<ChatterKey> clearedChatters = new HashSet<>();
+        private final Set<ChannelKey> clearedChannels = new HashSet<>();
+
+        private boolean covers(ChatMessage message) {
+            if (message.messageId() != null && deletedIds.contains(message.messageId())) {
+                return true;
+            }
+            if (clearedChannels.contains(new ChannelKey(message.source(), message.channelId()))) {
+                return true;
+            }
+            return message.chatterUserId() != null && clearedChatters.contains(
+                    new ChatterKey(message.source(), message.channelId(), message.chatterUserId()));
+        }
+    }
+
+    /**
+     * Offsets of the length prefixes of every complete record, found by
+     * hopping from prefix to prefix without decoding the payloads.
+     */
+    private static List<Integer> recordOffsets(ByteBuffer segment) {
+        List<Integer> offsets = new ArrayList<>();
+        int offset = HEADER_SIZE;
+        while (offset + Integer.BYTES <= segment.limit()) {
+            int length = segment.getInt(offset);
+            if (length <= 0 || length > segment.limit() - offset - Integer.BYTES) {
+                break;
+            }
+            offsets.add(offset);
+            offset += Integer.BYTES + length;
+        }
+        return offsets;
+    }
+
+    private static int endOfRecords(ByteBuffer segment) {
+        List<Integer> offsets = recordOffsets(segment);
+        if (offsets.isEmpty()) {
+            return HEADER_SIZE;
+        }
+        int last = offsets.get(offsets.size() - 1);
+        return last + Integer.BYTES + segment.getInt(last);
+    }
+
+    private MappedByteBuffer map(long index, FileChannel.MapMode mode) throws IOException {
+        Path path = segmentPath(index);
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(mode, 0, channel.size());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(mode, 0, SEGMENT_SIZE);
+        }
+    }
+
+    private List<Long> segmentIndices() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> {
+                        try {
+                            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                    })
+                    .filter(Objects::nonNull)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve("%016d%s".formatted(index, SEGMENT_SUFFIX));
+    }
+}
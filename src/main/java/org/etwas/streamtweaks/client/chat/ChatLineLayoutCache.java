@@ -0,0 +1,160 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.etwas.streamtweaks.StreamTweaks;
+
+import net.minecraft.client.font.TextRenderer;
+import net.minecraft.text.OrderedText;
+import net.minecraft.text.Text;
+
+/**
+ * Keeps the wrapped lines of each chat message between frames so that the
+ * overlay only builds and wraps text for messages it has not seen yet.
+ * Entries are keyed by message identity and dropped as a whole whenever the
+ * wrap width, chat scale or text renderer changes.
+ */
+final class ChatLineLayoutCache {
+    private static final int SWEEP_THRESHOLD = 256;
+    private static final EmoteRun[] NO_EMOTES = new EmoteRun[0];
+
+    /**
+     * Style insertion that marks the placeholder characters of an inline emote.
+     */
+    static final String EMOTE_INSERTION_PREFIX = StreamTweaks.MOD_ID + ":emote:";
+
+    private final Map<ChatMessage, Layout> layouts = new IdentityHashMap<>();
+    private TextRenderer textRenderer;
+    private int width = -1;
+    private float scale = Float.NaN;
+    private long frame;
+    private long logVersion = -1;
+    private boolean logChanged;
+    // Time spent building and wrapping lines during the current frame.
+    private long buildNanos;
+    private long wrapNanos;
+
+    static final class Layout {
+        private final List<OrderedText> lines;
+        private final EmoteRun[][] emotes;
+        private long lastUsedFrame;
+
+        private Layout(List<OrderedText> lines, EmoteRun[][] emotes) {
+            this.lines = lines;
+            this.emotes = emotes;
+        }
+
+        int lineCount() {
+            return lines.size();
+        }
+
+        OrderedText line(int index) {
+            return lines.get(index);
+        }
+
+        EmoteRun[] emotes(int index) {
+            return emotes != null ? emotes[index] : NO_EMOTES;
+        }
+    }
+
+    record EmoteRun(int x, String emoteId) {
+    }
+
+    void beginFrame(TextRenderer textRenderer, int width, float scale, long logVersion) {
+        if (this.textRenderer != textRenderer || this.width != width || Float.compare(this.scale, scale) != 0) {
+            layouts.clear();
+            this.textRenderer = textRenderer;
+            this.width = width;
+            this.scale = scale;
+        }
+        logChanged = this.logVersion != logVersion;
+        this.logVersion = logVersion;
+        frame++;
+        buildNanos = 0;
+        wrapNanos = 0;
+    }
+
+    long buildNanos() {
+        return buildNanos;
+    }
+
+    long wrapNanos() {
+        return wrapNanos;
+    }
+
+    Layout get(ChatMessage message, Function<ChatMessage, Text> lineBuilder) {
+        Layout layout = layouts.get(message);
+        if (layout == null) {
+            long buildStart = System.nanoTime();
+            Text text = lineBuilder.apply(message);
+            long wrapStart = System.nanoTime();
+            List<OrderedText> lines = textRenderer.wrapLines(text, width);
+            EmoteRun[][] emotes = null;
+            if (hasEmotes(message)) {
+                emotes = new EmoteRun[lines.size()][];
+                for (int i = 0; i < emotes.length; i++) {
+                    emotes[i] = findEmotes(lines.get(i));
+                }
+            }
+            layout = new Layout(lines, emotes);
+            layouts.put(message, layout);
+            buildNanos += wrapStart - buildStart;
+            wrapNanos += System.nanoTime() - wrapStart;
+        }
+        layout.lastUsedFrame = frame;
+        return layout;
+    }
+
+    /**
+     * Returns the wrapped line count of a message if it is cached, or -1.
+     */
+    int lineCount(ChatMessage message) {
+        Layout layout = layouts.get(message);
+        return layout != null ? layout.lineCount() : -1;
+    }
+
+    void endFrame() {
+        if (!logChanged || layouts.size() <= SWEEP_THRESHOLD) {
+            return;
+        }
+        Iterator<Layout> iterator = layouts.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastUsedFrame != frame) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private EmoteRun[] findEmotes(OrderedText line) {
+        List<EmoteRun> runs = new ArrayList<>();
+        int[] x = { 0 };
+        String[] currentEmote = { null };
+        line.accept((index, style, codePoint) -> {
+            String insertion = style.getInsertion();
+            String emoteId = insertion != null && insertion.startsWith(EMOTE_INSERTION_PREFIX)
+                    ? insertion.substring(EMOTE_INSERTION_PREFIX.length())
+                    : null;
+            if (emoteId != null && !emoteId.equals(currentEmote[0])) {
+                runs.add(new EmoteRun(x[0], emoteId));
+            }
+            currentEmote[0] = emoteId;
+            x[0] += textRenderer.getWidth(OrderedText.styled(codePoint, style));
+            return true;
+        });
+        return runs.isEmpty() ? NO_EMOTES : runs.toArray(EmoteRun[]::new);
+    }
+
+    private static boolean hasEmotes(ChatMessage message) {
+        for (ChatMessage.Fragment fragment : message.fragments()) {
+            if (fragment instanceof ChatMessage.EmoteFragment) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
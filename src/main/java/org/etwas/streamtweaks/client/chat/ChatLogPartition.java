@@ -0,0 +1,305 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The messages of one source and channel in {@link ChatMessageLog}, kept in a
+ * ring with its own capacity so a busy channel cannot evict another's
+ * history. Only touched by the log's writer, under the log's lock; readers
+ * go through immutable {@link Window}s.
+ */
+final class ChatLogPartition {
+    /**
+     * Receives every message leaving the partition.
+     */
+    interface RemovalSink {
+        void removed(Entry entry, boolean evicted);
+    }
+
+    record Entry(long position, long sequence, ChatMessage message) {
+    }
+
+    private final RemovalSink sink;
+    // Ring of slots addressed by ever-increasing positions in [start, end).
+    // Removed messages leave a null tombstone that is skipped when it reaches
+    // the start, and dropped in bulk when the ring fills up and is compacted.
+    // Each entry records its position so readers holding an older window can
+    // tell when a slot has since been reused.
+    private Entry[] slots;
+    private long start;
+    private long end;
+    private int liveCount;
+    private final Map<String, Integer> slotsById = new HashMap<>();
+    // Positions of each chatter's messages, oldest first, so removing one
+    // chatter's history only touches their own messages.
+    private final Map<String, Deque<Long>> positionsByChatter = new HashMap<>();
+    private int capacity;
+    private long byteBudget;
+    private long retainedBytes;
+    private long version;
+    private Window window;
+
+    ChatLogPartition(int capacity, long byteBudget, RemovalSink sink) {
+        this.capacity = capacity;
+        this.byteBudget = byteBudget;
+        this.sink = sink;
+        this.slots = new Entry[capacity * 2];
+    }
+
+    int liveCount() {
+        return liveCount;
+    }
+
+    long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Keeps at most {@code capacity} messages and, if {@code byteBudget} is
+     * positive, at most that many estimated bytes; the newest message is
+     * always kept.
+     */
+    void setLimits(int capacity, long byteBudget) {
+        this.capacity = capacity;
+        this.byteBudget = byteBudget;
+        trim();
+    }
+
+    void add(ChatMessage message, long sequence) {
+        if (end - start == slots.length) {
+            // Grow only when live messages fill half the ring, so the next
+            // compaction is at least as far away as this one was.
+            compact(liveCount >= slots.length / 2 ? slots.length * 2 : slots.length);
+        }
+        int slot = slotOf(end);
+        slots[slot] = new Entry(end, sequence, message);
+        end++;
+        liveCount++;
+        retainedBytes += ChatMessageLog.estimateRetainedBytes(message);
+        version++;
+
+        index(message, slot, end - 1);
+    }
+
+    boolean removeById(String messageId) {
+        Integer slot = slotsById.get(messageId);
+        if (slot == null) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    int removeByChatter(String chatterUserId) {
+        Deque<Long> positions = positionsByChatter.remove(chatterUserId);
+        if (positions == null) {
+            return 0;
+        }
+        for (long position : positions) {
+            removeSlot(slotOf(position));
+        }
+        return positions.size();
+    }
+
+    /**
+     * Hands every live message to the sink, as evicted or as removed.
+     */
+    void drain(boolean evicted) {
+        for (long position = start; position < end; position++) {
+            Entry entry = slots[slotOf(position)];
+            if (entry != null) {
+                sink.removed(entry, evicted);
+            }
+        }
+    }
+
+    Window window() {
+        if (window == null || window.version != version) {
+            window = new Window(version, slots, start, end, liveCount, retainedBytes);
+        }
+        return window;
+    }
+
+    private int slotOf(long position) {
+        return (int) (position % slots.length);
+    }
+
+    private void index(ChatMessage message, int slot, long position) {
+        if (message.messageId() != null) {
+            slotsById.put(message.messageId(), slot);
+        }
+        if (message.chatterUserId() != null) {
+            positionsByChatter.computeIfAbsent(message.chatterUserId(), id -> new ArrayDeque<>()).addLast(position);
+        }
+    }
+
+    private void unindex(Entry entry, boolean evicted) {
+        ChatMessage message = entry.message();
+        retainedBytes -= ChatMessageLog.estimateRetainedBytes(message);
+        if (message.messageId() != null) {
+            slotsById.remove(message.messageId());
+        }
+        if (message.chatterUserId() != null) {
+            Deque<Long> positions = positionsByChatter.get(message.chatterUserId());
+            // Evictions and most removals hit the chatter's oldest message,
+            // so this usually stops at the head.
+            if (positions != null && positions.removeFirstOccurrence(entry.position()) && positions.isEmpty()) {
+                positionsByChatter.remove(message.chatterUserId());
+            }
+        }
+        sink.removed(entry, evicted);
+    }
+
+    private void removeSlot(int slot) {
+        unindex(slots[slot], false);
+        slots[slot] = null;
+        liveCount--;
+        version++;
+        skipLeadingTombstones();
+    }
+
+    private void skipLeadingTombstones() {
+        while (start < end && slots[slotOf(start)] == null) {
+            start++;
+        }
+    }
+
+    private void compact(int length) {
+        Entry[] compacted = new Entry[length];
+        int count = 0;
+        slotsById.clear();
+        positionsByChatter.clear();
+        for (long position = start; position < end; position++) {
+            Entry entry = slots[slotOf(position)];
+            if (entry != null) {
+                compacted[count] = new Entry(count, entry.sequence(), entry.message());
+                index(entry.message(), count, count);
+                count++;
+            }
+        }
+        slots = compacted;
+        start = 0;
+        end = count;
+        version++;
+    }
+
+    private boolean overCapacity() {
+        if (byteBudget > 0 && retainedBytes > byteBudget && liveCount > 1) {
+            return true;
+        }
+        return liveCount > capacity;
+    }
+
+    /**
+     * Evicts the oldest messages until the partition is within its limits.
+     */
+    void trim() {
+        while (overCapacity()) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Returns the oldest live message, or {@code null} if the partition is
+     * empty.
+     */
+    ChatMessage oldest() {
+        return start < end ? slots[slotOf(start)].message() : null;
+    }
+
+    /**
+     * Evicts the messages received at or before {@code cutoffNanos}
+     * ({@link System#nanoTime()} scale). Messages are in receive order, so
+     * this only touches the expired ones.
+     *
+     * @return the number of messages evicted
+     */
+    int expire(long cutoffNanos) {
+        int expired = 0;
+        while (start < end && slots[slotOf(start)].message().receivedAtNanos() - cutoffNanos <= 0) {
+            evictOldest();
+            expired++;
+        }
+        return expired;
+    }
+
+    private void evictOldest() {
+        // Clear the slot so the budget is a real bound on what the ring
+        // keeps reachable; windows published earlier read it as gone.
+        int slot = slotOf(start);
+        unindex(slots[slot], true);
+        slots[slot] = null;
+        start++;
+        liveCount--;
+        version++;
+        skipLeadingTombstones();
+    }
+
+    /**
+     * Immutable window over the partition's ring at one version. Removed
+     * messages read as {@code null}, as do the oldest messages once the
+     * writer has evicted them.
+     */
+    static final class Window {
+        private final long version;
+        private final Entry[] slots;
+        private final long start;
+        private final int size;
+        private final int liveCount;
+        private final long retainedBytes;
+
+        private Window(long version, Entry[] slots, long start, long end, int liveCount, long retainedBytes) {
+            this.version = version;
+            this.slots = slots;
+            this.start = start;
+            this.size = (int) (end - start);
+            this.liveCount = liveCount;
+            this.retainedBytes = retainedBytes;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int liveCount() {
+            return liveCount;
+        }
+
+        long retainedBytes() {
+            return retainedBytes;
+        }
+
+        long firstPosition() {
+            return start;
+        }
+
+        /**
+         * Identifies the ring the positions refer to; positions of windows
+         * with different epochs are unrelated.
+         */
+        Object positionEpoch() {
+            return slots;
+        }
+
+        ChatMessage get(int index) {
+            Entry entry = entry(index);
+            return entry != null ? entry.message() : null;
+        }
+
+        long sequence(int index) {
+            Entry entry = entry(index);
+            return entry != null ? entry.sequence() : -1;
+        }
+
+        private Entry entry(int index) {
+            Objects.checkIndex(index, size);
+            long position = start + index;
+            Entry entry = slots[(int) (position % slots.length)];
+            return entry != null && entry.position() == position ? entry : null;
+        }
+    }
+}
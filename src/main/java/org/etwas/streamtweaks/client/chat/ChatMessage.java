@@ -1,33 +1,78 @@
 package org.etwas.streamtweaks.client.chat;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Objects;
 
+import org.etwas.streamtweaks.client.chat.ChatterRegistry.ChatterIdentity;
+
 import net.minecraft.text.TextColor;
 
 public record ChatMessage(
         String messageId,
-        String chatterUserId,
-        String chatterLogin,
-        String chatterDisplayName,
+        ChatterIdentity chatter,
         String body,
         Fragment[] fragments,
         boolean action,
         TextColor color,
         Instant receivedAt,
-        Source source) {
+        long receivedAtNanos,
+        Source source,
+        String channelId,
+        Reply reply) {
 
     public ChatMessage {
         Objects.requireNonNull(source, "source");
         if (receivedAt == null) {
             receivedAt = Instant.now();
         }
+        if (fragments == null) {
+            fragments = new Fragment[0];
+        }
+    }
+
+    /**
+     * Creates a message whose monotonic receive time ({@link System#nanoTime()}
+     * scale) is derived from the wall-clock {@code receivedAt}.
+     */
+    public ChatMessage(String messageId, ChatterIdentity chatter, String body, Fragment[] fragments, boolean action,
+            TextColor color, Instant receivedAt, Source source, String channelId, Reply reply) {
+        this(messageId, chatter, body, fragments, action, color, receivedAt, toMonotonicNanos(receivedAt), source,
+                channelId, reply);
+    }
+
+    public String chatterUserId() {
+        return chatter != null ? chatter.userId() : null;
+    }
+
+    public String chatterLogin() {
+        return chatter != null ? chatter.login() : null;
+    }
+
+    public String chatterDisplayName() {
+        return chatter != null ? chatter.displayName() : null;
+    }
+
+    private static long toMonotonicNanos(Instant receivedAt) {
+        long nowNanos = System.nanoTime();
+        if (receivedAt == null) {
+            return nowNanos;
+        }
+        return nowNanos - Duration.between(receivedAt, Instant.now()).toNanos();
     }
 
     public enum Source {
         TWITCH
     }
 
+    /**
+     * The message a reply answers and the first message of its thread. The
+     * senders are kept so they can be shown after those messages are gone.
+     */
+    public record Reply(String parentMessageId, String parentUserLogin, String parentUserName,
+            String threadMessageId, String threadUserName) {
+    }
+
     public sealed interface Fragment permits TextFragment, EmoteFragment, MentionFragment, CheermoteFragment {
         public String getString();
     }
@@ -40,27 +85,28 @@ public record ChatMessage(
         }
     }
 
-    public record EmoteFragment(String emoteId, String emoteSetId) implements Fragment {
+    public record EmoteFragment(String text, String emoteId, String emoteSetId) implements Fragment {
 
         @Override
         public String getString() {
-            return emoteId();
+            return text();
         }
     }
 
-    public record MentionFragment(String name, int startIndex, int endIndex) implements Fragment {
+    public record MentionFragment(String text, String name, int startIndex, int endIndex) implements Fragment {
 
         @Override
         public String getString() {
-            return name();
+            return text();
         }
     }
 
-    public record CheermoteFragment(String prefix, int amount, int startIndex, int endIndex) implements Fragment {
+    public record CheermoteFragment(String text, String prefix, int amount, int startIndex, int endIndex)
+            implements Fragment {
 
         @Override
         public String getString() {
-            return prefix() + amount();
+            return text();
         }
     }
 }
@@ -0,0 +1,205 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import net.minecraft.text.TextColor;
+
+/**
+ * Compact binary form of a {@link ChatMessage}. Strings are stored as a
+ * length-prefixed UTF-8 run ({@code -1} for {@code null}); the monotonic
+ * receive time is not stored and is derived again from the wall-clock time
+ * when decoding. The layout carries no version of its own;
+ * {@link ChatHistoryStore} stamps its segments with one, so changing the
+ * layout means bumping that.
+ */
+final class ChatMessageCodec {
+    private static final byte FLAG_ACTION = 1;
+    private static final byte FLAG_REPLY = 2;
+    static final int NO_COLOR = -1;
+
+    private static final byte TEXT = 0;
+    private static final byte EMOTE = 1;
+    private static final byte MENTION = 2;
+    private static final byte CHEERMOTE = 3;
+
+    private static final ChatMessage.Source[] SOURCES = ChatMessage.Source.values();
+
+    private ChatMessageCodec() {
+    }
+
+    /**
+     * Writes {@code message} at the buffer's position and returns the buffer,
+     * or a larger copy of it if the message did not fit.
+     */
+    static ByteBuffer encode(ChatMessage message, ByteBuffer buffer) {
+        buffer = ensure(buffer, Long.BYTES + 2 + Integer.BYTES * 2);
+        buffer.putLong(message.receivedAt().toEpochMilli());
+        buffer.put((byte) message.source().ordinal());
+        buffer.put((byte) ((message.action() ? FLAG_ACTION : 0) | (message.reply() != null ? FLAG_REPLY : 0)));
+        buffer.putInt(message.color() != null ? message.color().getRgb() : NO_COLOR);
+        buffer = putString(buffer, message.channelId());
+        buffer = putString(buffer, message.messageId());
+        buffer = putString(buffer, message.chatterUserId());
+        buffer = putString(buffer, message.chatterLogin());
+        buffer = putString(buffer, message.chatterDisplayName());
+        buffer = putString(buffer, message.body());
+        buffer = encodeFragments(message.fragments(), buffer);
+        return message.reply() != null ? encodeReply(message.reply(), buffer) : buffer;
+    }
+
+    /**
+     * Reads one message from the buffer's position.
+     *
+     * @throws IllegalArgumentException if the bytes are not a valid message
+     */
+    static ChatMessage decode(ByteBuffer buffer) {
+        try {
+            Instant receivedAt = Instant.ofEpochMilli(buffer.getLong());
+            int sourceOrdinal = buffer.get();
+            if (sourceOrdinal < 0 || sourceOrdinal >= SOURCES.length) {
+                throw new IllegalArgumentException("Unknown message source " + sourceOrdinal);
+            }
+            int flags = buffer.get();
+            int rgb = buffer.getInt();
+            String channelId = getString(buffer);
+            String messageId = getString(buffer);
+            String chatterUserId = getString(buffer);
+            String chatterLogin = getString(buffer);
+            String chatterDisplayName = getString(buffer);
+            String body = getString(buffer);
+            ChatMessage.Fragment[] fragments = decodeFragments(buffer);
+            ChatMessage.Reply reply = (flags & FLAG_REPLY) != 0 ? decodeReply(buffer) : null;
+
+            ChatterRegistry.ChatterIdentity chatter = ChatterRegistry.getInstance()
+                    .intern(chatterUserId, chatterLogin, chatterDisplayName);
+            return new ChatMessage(messageId, chatter, body, fragments, (flags & FLAG_ACTION) != 0,
+                    rgb != NO_COLOR ? TextColor.fromRgb(rgb) : null, receivedAt, SOURCES[sourceOrdinal], channelId,
+                    reply);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated message", e);
+        }
+    }
+
+    static ByteBuffer encodeReply(ChatMessage.Reply reply, ByteBuffer buffer) {
+        buffer = putString(buffer, reply.parentMessageId());
+        buffer = putString(buffer, reply.parentUserLogin());
+        buffer = putString(buffer, reply.parentUserName());
+        buffer = putString(buffer, reply.threadMessageId());
+        return putString(buffer, reply.threadUserName());
+    }
+
+    static ChatMessage.Reply decodeReply(ByteBuffer buffer) {
+        return new ChatMessage.Reply(getString(buffer), getString(buffer), getString(buffer), getString(buffer),
+                getString(buffer));
+    }
+
+    static ByteBuffer encodeFragments(ChatMessage.Fragment[] fragments, ByteBuffer buffer) {
+        buffer = ensure(buffer, Integer.BYTES);
+        buffer.putInt(fragments.length);
+        for (ChatMessage.Fragment fragment : fragments) {
+            buffer = ensure(buffer, 1 + Integer.BYTES * 2);
+            switch (fragment) {
+                case ChatMessage.TextFragment text -> {
+                    buffer.put(TEXT);
+                    buffer = putString(buffer, text.text());
+                }
+                case ChatMessage.EmoteFragment emote -> {
+                    buffer.put(EMOTE);
+                    buffer = putString(buffer, emote.text());
+                    buffer = putString(buffer, emote.emoteId());
+                    buffer = putString(buffer, emote.emoteSetId());
+                }
+                case ChatMessage.MentionFragment mention -> {
+                    buffer.put(MENTION);
+                    buffer.putInt(mention.startIndex());
+                    buffer.putInt(mention.endIndex());
+                    buffer = putString(buffer, mention.text());
+                    buffer = putString(buffer, mention.name());
+                }
+                case ChatMessage.CheermoteFragment cheermote -> {
+                    buffer.put(CHEERMOTE);
+                    buffer.putInt(cheermote.startIndex());
+                    buffer.putInt(cheermote.endIndex());
+                    buffer = ensure(buffer, Integer.BYTES);
+                    buffer.putInt(cheermote.amount());
+                    buffer = putString(buffer, cheermote.text());
+                    buffer = putString(buffer, cheermote.prefix());
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @throws BufferUnderflowException if the buffer ends early
+     */
+    static ChatMessage.Fragment[] decodeFragments(ByteBuffer buffer) {
+        int fragmentCount = buffer.getInt();
+        if (fragmentCount < 0 || fragmentCount > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid fragment count " + fragmentCount);
+        }
+        ChatMessage.Fragment[] fragments = new ChatMessage.Fragment[fragmentCount];
+        for (int i = 0; i < fragmentCount; i++) {
+            byte type = buffer.get();
+            fragments[i] = switch (type) {
+                case TEXT -> new ChatMessage.TextFragment(getString(buffer));
+                case EMOTE -> new ChatMessage.EmoteFragment(getString(buffer), getString(buffer),
+                        getString(buffer));
+                case MENTION -> {
+                    int startIndex = buffer.getInt();
+                    int endIndex = buffer.getInt();
+                    yield new ChatMessage.MentionFragment(getString(buffer), getString(buffer), startIndex,
+                            endIndex);
+                }
+                case CHEERMOTE -> {
+                    int startIndex = buffer.getInt();
+                    int endIndex = buffer.getInt();
+                    int amount = buffer.getInt();
+                    yield new ChatMessage.CheermoteFragment(getString(buffer), getString(buffer), amount,
+                            startIndex, endIndex);
+                }
+                default -> throw new IllegalArgumentException("Unknown fragment type " + type);
+            };
+        }
+        return fragments;
+    }
+
+    static ByteBuffer putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer = ensure(buffer, Integer.BYTES);
+            buffer.putInt(-1);
+            return buffer;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer = ensure(buffer, Integer.BYTES + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -1,20 +1,110 @@
 package org.etwas.streamtweaks.client.chat;
 
-import java.util.ArrayDeque;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.etwas.streamtweaks.utils.ThreadPools;
+
+/**
+ * Bounded chat history with a single writer and lock-free readers. Writers
+ * are serialized on the log's monitor; after every change they publish an
+ * immutable {@link View} through a volatile field, so readers such as the
+ * overlay never take the lock or copy messages.
+ * <p>
+ * Messages are kept in one {@link ChatLogPartition} per source and channel,
+ * each with its own capacity, so clearing a channel drops its partition
+ * without touching the others. Only one partition is shown at a time: the
+ * channel that last received a message or was activated. The others are
+ * parked; they leave the view but stay in memory, so coming back to a channel
+ * shows its history at once. Listeners still see parked messages as part of
+ * the log.
+ * <p>
+ * With a maximum age set, each partition sits in a timing wheel at the
+ * deadline of its oldest message; when that comes, the partition evicts its
+ * expired messages from the old end and is scheduled again, so expiry never
+ * scans the log.
+ */
 public final class ChatMessageLog {
     private static final int DEFAULT_CAPACITY = 200;
+    private static final int MAX_PARKED_CHANNELS = 3;
+    // Shared by the parked channels while the log is limited by message
+    // count.
+    private static final long PARKED_BYTE_BUDGET = 8L * 1024 * 1024;
+    private static final long EXPIRY_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int EXPIRY_WHEEL_BUCKETS = 512;
     private static final ChatMessageLog INSTANCE = new ChatMessageLog(DEFAULT_CAPACITY);
 
-    private final Deque<ChatMessage> messages;
-    private final Map<String, ChatMessage> messagesById;
+    private PartitionKey currentKey;
+    private ChatLogPartition current;
+    // Least recently parked first.
+    private final Map<PartitionKey, ChatLogPartition> parked = new LinkedHashMap<>();
+    private final ChatLogPartition.RemovalSink removalSink = this::notifyRemoved;
     private int capacity;
+    private long byteBudget;
+    private long maxAgeNanos;
+    private final ExpiryWheel<PartitionKey> expiryWheel = new ExpiryWheel<>(EXPIRY_WHEEL_BUCKETS,
+            EXPIRY_TICK_NANOS, System.nanoTime());
+    private ScheduledExecutorService expiryExecutor;
+    private ScheduledFuture<?> expiryTask;
+    private long version;
+    private long nextSequence;
+    private volatile View published;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private record PartitionKey(ChatMessage.Source source, String channelId) {
+    }
+
+    /**
+     * Observes messages entering and leaving the log. Every message gets a
+     * sequence number that increases in append order and is never reused.
+     * Callbacks run on the writing thread while the log's lock is held, so
+     * they must be quick and must not call back into the log.
+     */
+    public interface Listener {
+        void onAppend(long sequence, ChatMessage message);
+
+        /**
+         * Called when a message is removed or replaced.
+         */
+        void onRemove(long sequence, ChatMessage message);
+
+        /**
+         * Called when a message falls out of the log because the log is over
+         * capacity. Defaults to {@link #onRemove}.
+         */
+        default void onEvict(long sequence, ChatMessage message) {
+            onRemove(sequence, message);
+        }
+
+        /**
+         * Called when a moderator deletes a message, whether or not it is
+         * still in the log, so listeners that keep messages past the log can
+         * forget it too.
+         */
+        default void onDeleted(String messageId) {
+        }
+
+        /**
+         * Called when a moderator clears a chatter's messages in one channel.
+         */
+        default void onChatterCleared(ChatMessage.Source source, String channelId, String chatterUserId) {
+        }
+
+        /**
+         * Called when a moderator clears one channel.
+         */
+        default void onChannelCleared(ChatMessage.Source source, String channelId) {
+        }
+    }
 
     public static ChatMessageLog getInstance() {
         return INSTANCE;
@@ -22,75 +112,494 @@ public final class ChatMessageLog {
 
     private ChatMessageLog(int capacity) {
         this.capacity = capacity;
-        this.messages = new ArrayDeque<>(capacity);
-        this.messagesById = new HashMap<>();
+        this.published = new View(version, null, 0);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(Objects.requireNonNull(listener, "listener"));
     }
 
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Limits each source and channel to {@code capacity} messages. Ignored
+     * while a byte budget is set.
+     */
     public synchronized void setCapacity(int capacity) {
         if (capacity <= 0) {
             throw new IllegalArgumentException("capacity must be positive");
         }
         this.capacity = capacity;
-        trimToCapacity();
+        applyLimits();
     }
 
-    public synchronized void add(ChatMessage message) {
-        Objects.requireNonNull(message, "message");
+    /**
+     * Limits the whole log, parked channels included, by the estimated heap
+     * retained by its messages instead of by message count. Parked channels
+     * may use up to three quarters of the budget and the shown channel gets
+     * the rest. {@code 0} goes back to the count limit.
+     */
+    public synchronized void setByteBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("byte budget must not be negative");
+        }
+        this.byteBudget = bytes;
+        applyLimits();
+    }
 
-        if (message.messageId() != null) {
-            ChatMessage previous = messagesById.remove(message.messageId());
-            if (previous != null) {
-                messages.remove(previous);
+    /**
+     * Evicts messages once they are older than {@code maxAge}, on top of the
+     * count or byte limit. {@code null} or zero keeps messages until those
+     * limits drop them.
+     */
+    public synchronized void setMaxAge(Duration maxAge) {
+        long nanos = maxAge != null && maxAge.isPositive() ? maxAge.toNanos() : 0;
+        if (nanos == maxAgeNanos) {
+            return;
+        }
+        maxAgeNanos = nanos;
+        expiryWheel.clear();
+        if (nanos == 0) {
+            if (expiryTask != null) {
+                expiryTask.cancel(false);
+                expiryTask = null;
+            }
+            return;
+        }
+
+        if (current != null) {
+            scheduleExpiry(currentKey, current);
+        }
+        for (Map.Entry<PartitionKey, ChatLogPartition> entry : parked.entrySet()) {
+            scheduleExpiry(entry.getKey(), entry.getValue());
+        }
+        if (expiryTask == null) {
+            if (expiryExecutor == null) {
+                expiryExecutor = ThreadPools.singleScheduler("chat-log-expiry");
             }
+            expiryTask = expiryExecutor.scheduleAtFixedRate(this::expire, EXPIRY_TICK_NANOS, EXPIRY_TICK_NANOS,
+                    TimeUnit.NANOSECONDS);
         }
+    }
 
-        messages.addLast(message);
+    public synchronized void add(ChatMessage message) {
+        Objects.requireNonNull(message, "message");
 
         if (message.messageId() != null) {
-            messagesById.put(message.messageId(), message);
+            removeFromAny(message.messageId());
+        }
+
+        PartitionKey key = new PartitionKey(message.source(), message.channelId());
+        if (!key.equals(currentKey)) {
+            show(key);
+        }
+        ChatLogPartition partition = current;
+        long sequence = nextSequence++;
+        partition.add(message, sequence);
+        for (Listener listener : listeners) {
+            listener.onAppend(sequence, message);
+        }
+        partition.trim();
+        if (maxAgeNanos > 0 && !expiryWheel.isScheduled(key)) {
+            scheduleExpiry(key, partition);
         }
 
-        trimToCapacity();
+        version++;
+        publish();
     }
 
     public synchronized boolean removeById(String messageId) {
         if (messageId == null) {
             return false;
         }
-        ChatMessage removed = messagesById.remove(messageId);
-        if (removed == null) {
+        for (Listener listener : listeners) {
+            listener.onDeleted(messageId);
+        }
+        if (!removeFromAny(messageId)) {
             return false;
         }
-        boolean updated = messages.remove(removed);
-        return updated;
+        version++;
+        publish();
+        return true;
+    }
+
+    /**
+     * Removes every message {@code chatterUserId} sent in one channel, in
+     * time proportional to the number of those messages.
+     *
+     * @return the number of messages removed
+     */
+    public synchronized int removeByChatter(ChatMessage.Source source, String channelId, String chatterUserId) {
+        if (chatterUserId == null) {
+            return 0;
+        }
+        for (Listener listener : listeners) {
+            listener.onChatterCleared(source, channelId, chatterUserId);
+        }
+        ChatLogPartition partition = partition(new PartitionKey(source, channelId));
+        if (partition == null) {
+            return 0;
+        }
+        int removed = partition.removeByChatter(chatterUserId);
+        if (removed > 0) {
+            version++;
+            publish();
+        }
+        return removed;
+    }
+
+    /**
+     * Drops every message of one channel, whether it is shown or parked.
+     */
+    public synchronized void clearChannel(ChatMessage.Source source, String channelId) {
+        for (Listener listener : listeners) {
+            listener.onChannelCleared(source, channelId);
+        }
+        PartitionKey key = new PartitionKey(source, channelId);
+        ChatLogPartition partition;
+        if (key.equals(currentKey)) {
+            partition = current;
+            current = null;
+            currentKey = null;
+        } else {
+            partition = parked.remove(key);
+        }
+        if (partition != null) {
+            partition.drain(false);
+            applyPartitionLimits();
+            version++;
+            publish();
+        }
     }
 
     public synchronized void clearSource(ChatMessage.Source source) {
-        if (source == null) {
+        boolean changed = false;
+        if (currentKey != null && currentKey.source() == source) {
+            current.drain(false);
+            current = null;
+            currentKey = null;
+            changed = true;
+        }
+        Iterator<Map.Entry<PartitionKey, ChatLogPartition>> iterator = parked.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<PartitionKey, ChatLogPartition> entry = iterator.next();
+            if (entry.getKey().source() == source) {
+                iterator.remove();
+                entry.getValue().drain(false);
+                changed = true;
+            }
+        }
+        if (changed) {
+            applyPartitionLimits();
+            version++;
+            publish();
+        }
+    }
+
+    /**
+     * Takes the shown channel out of the view but keeps its messages, so
+     * {@link #activateChannel} can bring them back. Each parked channel is
+     * trimmed to a quarter of the byte budget, or to a third of 8 MiB while
+     * the log is limited by message count, and only the last three are kept;
+     * older ones are dropped as if evicted.
+     */
+    public synchronized void parkChannel(ChatMessage.Source source, String channelId) {
+        if (!new PartitionKey(source, channelId).equals(currentKey)) {
             return;
         }
+        parked.put(currentKey, current);
+        current = null;
+        currentKey = null;
+        applyPartitionLimits();
+        version++;
+        publish();
+    }
+
+    /**
+     * Shows a parked channel again, parking the channel shown until now.
+     *
+     * @return whether the channel was parked
+     */
+    public synchronized boolean activateChannel(ChatMessage.Source source, String channelId) {
+        PartitionKey key = new PartitionKey(source, channelId);
+        if (!parked.containsKey(key)) {
+            return false;
+        }
+        show(key);
+        version++;
+        publish();
+        return true;
+    }
 
-        messages.removeIf(message -> {
-            if (message.source() != source) {
-                return false;
+    public List<ChatMessage> snapshot() {
+        View current = view();
+        List<ChatMessage> messages = new ArrayList<>(current.liveCount());
+        for (int i = 0; i < current.size(); i++) {
+            ChatMessage message = current.get(i);
+            if (message != null) {
+                messages.add(message);
             }
-            if (message.messageId() != null) {
-                messagesById.remove(message.messageId());
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the latest published view of the log in receive order. Never
+     * blocks and never copies messages; callers can compare
+     * {@link View#version()} to detect that nothing changed.
+     */
+    public View view() {
+        return published;
+    }
+
+    private void applyLimits() {
+        applyPartitionLimits();
+        version++;
+        publish();
+    }
+
+    /**
+     * Makes {@code key} the shown partition, parking the one shown until now.
+     */
+    private void show(PartitionKey key) {
+        if (current != null) {
+            parked.put(currentKey, current);
+        }
+        ChatLogPartition partition = parked.remove(key);
+        current = partition != null ? partition : new ChatLogPartition(capacity, byteBudget, removalSink);
+        currentKey = key;
+        applyPartitionLimits();
+    }
+
+    /**
+     * Splits the byte budget: each parked channel keeps up to a quarter of it
+     * and the shown channel may use whatever they leave. Without a budget,
+     * every channel keeps {@link #capacity} messages and the parked ones
+     * also share {@link #PARKED_BYTE_BUDGET}.
+     */
+    private void applyPartitionLimits() {
+        trimParked();
+        int countLimit = byteBudget > 0 ? Integer.MAX_VALUE : capacity;
+        long parkedShare = byteBudget > 0
+                ? byteBudget / (MAX_PARKED_CHANNELS + 1)
+                : PARKED_BYTE_BUDGET / MAX_PARKED_CHANNELS;
+        long parkedBytes = 0;
+        for (ChatLogPartition partition : parked.values()) {
+            partition.setLimits(countLimit, parkedShare);
+            parkedBytes += partition.retainedBytes();
+        }
+        if (current != null) {
+            current.setLimits(countLimit, byteBudget > 0 ? byteBudget - parkedBytes : 0);
+        }
+    }
+
+    private void scheduleExpiry(PartitionKey key, ChatLogPartition partition) {
+        ChatMessage oldest = partition.oldest();
+        if (oldest != null) {
+            expiryWheel.schedule(key, oldest.receivedAtNanos() + maxAgeNanos);
+        }
+    }
+
+    private synchronized void expire() {
+        if (maxAgeNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long cutoff = now - maxAgeNanos;
+        int[] expired = { 0 };
+        expiryWheel.advance(now, key -> {
+            // Partitions dropped since they were scheduled are gone; a new
+            // partition under the same key is simply checked early.
+            ChatLogPartition partition = partition(key);
+            if (partition != null) {
+                expired[0] += partition.expire(cutoff);
+                scheduleExpiry(key, partition);
             }
-            return true;
         });
+        if (expired[0] > 0) {
+            version++;
+            publish();
+        }
+    }
+
+    private ChatLogPartition partition(PartitionKey key) {
+        return key.equals(currentKey) ? current : parked.get(key);
+    }
+
+    private boolean removeFromAny(String messageId) {
+        if (current != null && current.removeById(messageId)) {
+            return true;
+        }
+        for (ChatLogPartition partition : parked.values()) {
+            if (partition.removeById(messageId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void trimParked() {
+        Iterator<ChatLogPartition> iterator = parked.values().iterator();
+        while (parked.size() > MAX_PARKED_CHANNELS) {
+            ChatLogPartition oldest = iterator.next();
+            iterator.remove();
+            oldest.drain(true);
+        }
     }
 
-    public synchronized List<ChatMessage> snapshot() {
-        return new ArrayList<>(messages);
+    private void publish() {
+        long retainedBytes = current != null ? current.retainedBytes() : 0;
+        for (ChatLogPartition partition : parked.values()) {
+            retainedBytes += partition.retainedBytes();
+        }
+        published = new View(version, current != null ? current.window() : null, retainedBytes);
     }
 
-    private void trimToCapacity() {
-        while (messages.size() > capacity) {
-            ChatMessage removed = messages.removeFirst();
-            if (removed.messageId() != null) {
-                messagesById.remove(removed.messageId());
+    private void notifyRemoved(ChatLogPartition.Entry entry, boolean evicted) {
+        for (Listener listener : listeners) {
+            if (evicted) {
+                listener.onEvict(entry.sequence(), entry.message());
+            } else {
+                listener.onRemove(entry.sequence(), entry.message());
+            }
+        }
+    }
+
+    /**
+     * Rough heap retained by a message and its slot in the log, assuming a
+     * 64-bit JVM with compressed references. Chatter identities and colours
+     * are shared between messages and not counted.
+     */
+    static long estimateRetainedBytes(ChatMessage message) {
+        // Record, entry, Instant, fragment array and index map entries.
+        long bytes = 200 + stringBytes(message.messageId()) + stringBytes(message.body());
+        for (ChatMessage.Fragment fragment : message.fragments()) {
+            bytes += 4 + switch (fragment) {
+                case ChatMessage.TextFragment text -> 16 + stringBytes(text.text());
+                case ChatMessage.EmoteFragment emote -> 24 + stringBytes(emote.text())
+                        + stringBytes(emote.emoteId()) + stringBytes(emote.emoteSetId());
+                case ChatMessage.MentionFragment mention -> 24 + stringBytes(mention.text())
+                        + stringBytes(mention.name());
+                case ChatMessage.CheermoteFragment cheermote -> 24 + stringBytes(cheermote.text())
+                        + stringBytes(cheermote.prefix());
+            };
+        }
+        ChatMessage.Reply reply = message.reply();
+        if (reply != null) {
+            bytes += 32 + stringBytes(reply.parentMessageId()) + stringBytes(reply.parentUserLogin())
+                    + stringBytes(reply.parentUserName()) + stringBytes(reply.threadMessageId())
+                    + stringBytes(reply.threadUserName());
+        }
+        return bytes;
+    }
+
+    private static long stringBytes(String value) {
+        // Header, hash and value array; assumes two bytes per char.
+        return value == null ? 0 : 40 + value.length() * 2L;
+    }
+
+    /**
+     * The shown channel at one version, in receive order. Positions of
+     * removed messages may stay in the view as {@code null}, so callers must
+     * skip {@code null} entries. A view may also start returning {@code null}
+     * for its oldest messages once the writer has evicted them.
+     */
+    public static final class View {
+        private final long version;
+        private final ChatLogPartition.Window window;
+        private final long retainedBytes;
+
+        private View(long version, ChatLogPartition.Window window, long retainedBytes) {
+            this.version = version;
+            this.window = window;
+            this.retainedBytes = retainedBytes;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public int size() {
+            return window != null ? window.size() : 0;
+        }
+
+        public int liveCount() {
+            return window != null ? window.liveCount() : 0;
+        }
+
+        /**
+         * Estimated heap retained by the whole log, parked channels included.
+         */
+        public long retainedBytes() {
+            return retainedBytes;
+        }
+
+        public boolean isEmpty() {
+            return liveCount() == 0;
+        }
+
+        /**
+         * Log position of index 0. Positions only grow while
+         * {@link #positionEpoch()} stays the same, so they tie messages of
+         * successive views together.
+         */
+        long firstPosition() {
+            return window != null ? window.firstPosition() : 0;
+        }
+
+        Object positionEpoch() {
+            return window != null ? window.positionEpoch() : null;
+        }
+
+        /**
+         * Returns the message at {@code index}, or {@code null} if it was
+         * removed.
+         */
+        public ChatMessage get(int index) {
+            if (window == null) {
+                Objects.checkIndex(index, 0);
+            }
+            return window.get(index);
+        }
+
+        /**
+         * Returns the log sequence of the message at {@code index}, or
+         * {@code -1} if it was removed.
+         */
+        long sequence(int index) {
+            if (window == null) {
+                Objects.checkIndex(index, 0);
+            }
+            return window.sequence(index);
+        }
+
+        /**
+         * Returns the index of the oldest message received after
+         * {@code nanos} ({@link System#nanoTime()} scale), or {@link #size()}
+         * if there is none. Messages are in receive order, so this is a
+         * binary search.
+         */
+        public int firstIndexReceivedAfter(long nanos) {
+            int low = 0;
+            int high = size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int probe = mid;
+                ChatMessage message = get(probe);
+                while (message == null && ++probe < high) {
+                    message = get(probe);
+                }
+                if (message == null) {
+                    high = mid;
+                } else if (message.receivedAtNanos() - nanos > 0) {
+                    high = mid;
+                } else {
+                    low = probe + 1;
+                }
             }
+            return low;
         }
     }
 }
@@ -0,0 +1,134 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash indexes over the replies in {@link ChatMessageLog}: messages by id,
+ * replies by parent and by thread, and each chatter's latest reply. Entries
+ * leave with their messages, so the index never outgrows the log. Parent
+ * lookups never lock, since the overlay makes them while laying out lines.
+ */
+public final class ChatReplyIndex implements ChatMessageLog.Listener {
+    private static final ChatReplyIndex INSTANCE = new ChatReplyIndex();
+
+    private final Map<String, ChatMessage> messagesById = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, ChatMessage>> repliesByParent = new HashMap<>();
+    private final Map<String, Map<String, ChatMessage>> repliesByThread = new HashMap<>();
+    private final Map<String, ChatMessage> latestReplyByLogin = new HashMap<>();
+    private ChatMessage latestReply;
+
+    /**
+     * A thread's first message, or {@code null} if it already left the log,
+     * and its replies in receive order.
+     */
+    public record ReplyThread(ChatMessage root, List<ChatMessage> replies) {
+    }
+
+    private ChatReplyIndex() {
+    }
+
+    public static ChatReplyIndex getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public synchronized void onAppend(long sequence, ChatMessage message) {
+        if (message.messageId() == null) {
+            return;
+        }
+        messagesById.put(message.messageId(), message);
+
+        ChatMessage.Reply reply = message.reply();
+        if (reply == null) {
+            return;
+        }
+        if (reply.parentMessageId() != null) {
+            repliesByParent.computeIfAbsent(reply.parentMessageId(), id -> new LinkedHashMap<>())
+                    .put(message.messageId(), message);
+        }
+        if (reply.threadMessageId() != null) {
+            repliesByThread.computeIfAbsent(reply.threadMessageId(), id -> new LinkedHashMap<>())
+                    .put(message.messageId(), message);
+        }
+        if (message.chatterLogin() != null) {
+            latestReplyByLogin.put(message.chatterLogin().toLowerCase(Locale.ROOT), message);
+        }
+        latestReply = message;
+    }
+
+    @Override
+    public synchronized void onRemove(long sequence, ChatMessage message) {
+        if (message.messageId() == null || !messagesById.remove(message.messageId(), message)) {
+            return;
+        }
+
+        ChatMessage.Reply reply = message.reply();
+        if (reply == null) {
+            return;
+        }
+        removeFrom(repliesByParent, reply.parentMessageId(), message.messageId());
+        removeFrom(repliesByThread, reply.threadMessageId(), message.messageId());
+        if (message.chatterLogin() != null) {
+            latestReplyByLogin.remove(message.chatterLogin().toLowerCase(Locale.ROOT), message);
+        }
+        if (latestReply == message) {
+            latestReply = null;
+        }
+    }
+
+    /**
+     * Returns the message {@code message} replies to, if it is still in the
+     * log.
+     */
+    public ChatMessage parentOf(ChatMessage message) {
+        ChatMessage.Reply reply = message.reply();
+        if (reply == null || reply.parentMessageId() == null) {
+            return null;
+        }
+        return messagesById.get(reply.parentMessageId());
+    }
+
+    /**
+     * Returns the replies to {@code messageId} in receive order.
+     */
+    public synchronized List<ChatMessage> repliesTo(String messageId) {
+        Map<String, ChatMessage> replies = repliesByParent.get(messageId);
+        return replies != null ? new ArrayList<>(replies.values()) : List.of();
+    }
+
+    /**
+     * Returns the thread of the latest reply sent by {@code login}, or of the
+     * latest reply overall if {@code login} is {@code null}.
+     */
+    public synchronized ReplyThread latestThread(String login) {
+        ChatMessage reply = login != null
+                ? latestReplyByLogin.get(login.toLowerCase(Locale.ROOT))
+                : latestReply;
+        if (reply == null || reply.reply().threadMessageId() == null) {
+            return null;
+        }
+        return thread(reply.reply().threadMessageId());
+    }
+
+    private ReplyThread thread(String threadMessageId) {
+        Map<String, ChatMessage> replies = repliesByThread.get(threadMessageId);
+        return new ReplyThread(messagesById.get(threadMessageId),
+                replies != null ? new ArrayList<>(replies.values()) : List.of());
+    }
+
+    private static void removeFrom(Map<String, Map<String, ChatMessage>> index, String key, String messageId) {
+        if (key == null) {
+            return;
+        }
+        Map<String, ChatMessage> replies = index.get(key);
+        if (replies != null && replies.remove(messageId) != null && replies.isEmpty()) {
+            index.remove(key);
+        }
+    }
+}
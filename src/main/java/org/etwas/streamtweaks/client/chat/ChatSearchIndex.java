@@ -0,0 +1,249 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.etwas.streamtweaks.utils.ThreadPools;
+
+/**
+ * Inverted index over the messages currently in {@link ChatMessageLog}. Each
+ * token maps to the ascending sequence numbers of the messages containing it,
+ * so a query only intersects the posting lists of its own tokens. Words are
+ * split on anything that is not a letter or digit; Japanese and Chinese text
+ * has no spaces, so those runs are indexed as single characters and bigrams.
+ */
+public final class ChatSearchIndex implements ChatMessageLog.Listener {
+    private static final String USER_TOKEN_PREFIX = "user:";
+    private static final ChatSearchIndex INSTANCE = new ChatSearchIndex();
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<Long, ChatMessage> messages = new HashMap<>();
+    private final ScheduledExecutorService executor = ThreadPools.singleScheduler("chat-search");
+
+    private ChatSearchIndex() {
+    }
+
+    public static ChatSearchIndex getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public synchronized void onAppend(long sequence, ChatMessage message) {
+        for (String token : indexTokens(message)) {
+            postings.computeIfAbsent(token, key -> new Postings()).add(sequence);
+        }
+        messages.put(sequence, message);
+    }
+
+    @Override
+    public synchronized void onRemove(long sequence, ChatMessage message) {
+        if (messages.remove(sequence) == null) {
+            return;
+        }
+        for (String token : indexTokens(message)) {
+            Postings list = postings.get(token);
+            if (list != null && list.remove(sequence) && list.isEmpty()) {
+                postings.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Finds the newest messages containing every word of {@code terms},
+     * optionally only those sent by {@code login}. Runs on a background
+     * thread; if the log has too few hits, {@link ChatArchive} is scanned
+     * for older ones.
+     */
+    public CompletableFuture<List<ChatMessage>> search(String terms, String login, int limit) {
+        return CompletableFuture.supplyAsync(() -> searchNow(terms, login, limit), executor);
+    }
+
+    private List<ChatMessage> searchNow(String terms, String login, int limit) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (terms != null) {
+            tokenize(terms, false, tokens);
+        }
+        if (login != null && !login.isBlank()) {
+            tokens.add(USER_TOKEN_PREFIX + login.toLowerCase(Locale.ROOT));
+        }
+        if (tokens.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        List<ChatMessage> hits = searchLog(tokens, limit);
+        if (hits.size() < limit) {
+            hits.addAll(ChatArchive.getInstance()
+                    .findNewest(message -> indexTokens(message).containsAll(tokens), limit - hits.size()));
+        }
+        return hits;
+    }
+
+    private synchronized List<ChatMessage> searchLog(Set<String> tokens, int limit) {
+        Postings[] lists = new Postings[tokens.size()];
+        int i = 0;
+        for (String token : tokens) {
+            Postings list = postings.get(token);
+            if (list == null) {
+                return new ArrayList<>();
+            }
+            lists[i++] = list;
+        }
+        Arrays.sort(lists, Comparator.comparingInt(Postings::size));
+
+        List<ChatMessage> hits = new ArrayList<>(Math.min(limit, lists[0].size()));
+        Postings rarest = lists[0];
+        for (int k = 0; k < rarest.size() && hits.size() < limit; k++) {
+            long sequence = rarest.newest(k);
+            if (containsAll(lists, sequence)) {
+                hits.add(messages.get(sequence));
+            }
+        }
+        return hits;
+    }
+
+    private static boolean containsAll(Postings[] lists, long sequence) {
+        for (int i = 1; i < lists.length; i++) {
+            if (!lists[i].contains(sequence)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set<String> indexTokens(ChatMessage message) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (message.body() != null) {
+            tokenize(message.body(), true, tokens);
+        }
+        if (message.chatterLogin() != null) {
+            tokens.add(USER_TOKEN_PREFIX + message.chatterLogin().toLowerCase(Locale.ROOT));
+        }
+        return tokens;
+    }
+
+    /**
+     * Splits {@code text} into lower-case tokens. When indexing, every
+     * character of a CJK run is added on its own as well as paired with the
+     * next one; a query only uses the pairs, unless the run is one character
+     * long.
+     */
+    private static void tokenize(String text, boolean forIndex, Set<String> tokens) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        int previousCjk = -1;
+        int cjkRun = 0;
+
+        for (int i = 0; i < lower.length();) {
+            int codePoint = lower.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (isCjk(codePoint)) {
+                flushWord(word, tokens);
+                if (forIndex) {
+                    tokens.add(Character.toString(codePoint));
+                }
+                if (previousCjk >= 0) {
+                    tokens.add(Character.toString(previousCjk) + Character.toString(codePoint));
+                }
+                previousCjk = codePoint;
+                cjkRun++;
+                continue;
+            }
+
+            if (!forIndex && cjkRun == 1) {
+                tokens.add(Character.toString(previousCjk));
+            }
+            previousCjk = -1;
+            cjkRun = 0;
+            if (Character.isLetterOrDigit(codePoint)) {
+                word.appendCodePoint(codePoint);
+            } else {
+                flushWord(word, tokens);
+            }
+        }
+
+        if (!forIndex && cjkRun == 1) {
+            tokens.add(Character.toString(previousCjk));
+        }
+        flushWord(word, tokens);
+    }
+
+    private static void flushWord(StringBuilder word, Set<String> tokens) {
+        if (!word.isEmpty()) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /**
+     * Ascending sequence numbers. Messages are appended and usually evicted
+     * in sequence order, so both ends are cheap; removals in the middle shift
+     * the tail.
+     */
+    private static final class Postings {
+        private long[] values = new long[4];
+        private int start;
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long newest(int offset) {
+            return values[start + size - 1 - offset];
+        }
+
+        void add(long sequence) {
+            if (start + size == values.length) {
+                if (size <= values.length / 2) {
+                    System.arraycopy(values, start, values, 0, size);
+                } else {
+                    long[] grown = new long[values.length * 2];
+                    System.arraycopy(values, start, grown, 0, size);
+                    values = grown;
+                }
+                start = 0;
+            }
+            values[start + size++] = sequence;
+        }
+
+        boolean remove(long sequence) {
+            int index = Arrays.binarySearch(values, start, start + size, sequence);
+            if (index < 0) {
+                return false;
+            }
+            if (index == start) {
+                start++;
+            } else {
+                System.arraycopy(values, index + 1, values, index, start + size - index - 1);
+            }
+            size--;
+            return true;
+        }
+
+        boolean contains(long sequence) {
+            return Arrays.binarySearch(values, start, start + size, sequence) >= 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out one shared {@link ChatterIdentity} per chatter, so the messages
+ * of regulars all point at the same id, login and display name strings
+ * instead of each holding freshly parsed copies. Lookups never lock. When
+ * the table is full, arbitrary entries are dropped; that only costs a new
+ * identity the next time the chatter speaks.
+ */
+public final class ChatterRegistry {
+    private static final int MAX_ENTRIES = 4096;
+    private static final int ENTRIES_AFTER_PRUNE = MAX_ENTRIES * 3 / 4;
+    private static final ChatterRegistry INSTANCE = new ChatterRegistry();
+
+    private final Map<String, ChatterIdentity> identities = new ConcurrentHashMap<>();
+
+    /**
+     * Who sent a message. Instances are shared between messages and must be
+     * compared with {@code equals}.
+     */
+    public record ChatterIdentity(String userId, String login, String displayName) {
+    }
+
+    private ChatterRegistry() {
+    }
+
+    public static ChatterRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the canonical identity for these values, replacing the stored
+     * one if the chatter's login or display name changed. Chatters without a
+     * user id are not interned.
+     */
+    public ChatterIdentity intern(String userId, String login, String displayName) {
+        if (userId == null) {
+            return new ChatterIdentity(null, login, displayName);
+        }
+
+        ChatterIdentity identity = identities.get(userId);
+        if (identity != null && Objects.equals(identity.login(), login)
+                && Objects.equals(identity.displayName(), displayName)) {
+            return identity;
+        }
+
+        identity = new ChatterIdentity(userId, login, displayName);
+        identities.put(userId, identity);
+        if (identities.size() > MAX_ENTRIES) {
+            prune();
+        }
+        return identity;
+    }
+
+    private void prune() {
+        Iterator<String> keys = identities.keySet().iterator();
+        while (identities.size() > ENTRIES_AFTER_PRUNE && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+}
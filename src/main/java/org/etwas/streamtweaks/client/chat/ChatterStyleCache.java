@@ -0,0 +1,130 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import net.minecraft.text.MutableText;
+import net.minecraft.text.Text;
+import net.minecraft.text.TextColor;
+import net.minecraft.util.Formatting;
+
+/**
+ * Remembers the readable name colour and the styled name component of recent
+ * chatters. Regulars send many messages with the same colour, so both the
+ * colour math on ingest and the name styling on render are done once per
+ * chatter instead of once per message. Entries are keyed by chatter user id
+ * and replaced when the raw colour or display name changes.
+ */
+public final class ChatterStyleCache {
+    private static final int MAX_ENTRIES = 1024;
+    private static final ChatterStyleCache INSTANCE = new ChatterStyleCache();
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final class Entry {
+        private final String rawColor;
+        private final TextColor color;
+        private String displayName;
+        private Text nameComponent;
+
+        private Entry(String rawColor, TextColor color) {
+            this.rawColor = rawColor;
+            this.color = color;
+        }
+    }
+
+    private ChatterStyleCache() {
+    }
+
+    public static ChatterStyleCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the readability-adjusted colour for a chatter's raw Twitch
+     * colour ({@code #RRGGBB}), or {@code null} if it has none.
+     */
+    public synchronized TextColor resolveColor(String chatterUserId, String rawColor) {
+        if (chatterUserId == null) {
+            return adjustForReadability(parseTwitchColor(rawColor));
+        }
+
+        Entry entry = entries.get(chatterUserId);
+        if (entry == null || !Objects.equals(entry.rawColor, rawColor)) {
+            entry = new Entry(rawColor, adjustForReadability(parseTwitchColor(rawColor)));
+            entries.put(chatterUserId, entry);
+        }
+        return entry.color;
+    }
+
+    /**
+     * Returns the styled display-name component for a chatter. The returned
+     * text is shared and must not be modified.
+     */
+    public synchronized Text nameComponent(String chatterUserId, String displayName, TextColor color) {
+        Entry entry = chatterUserId != null ? entries.get(chatterUserId) : null;
+        if (entry == null || !Objects.equals(entry.color, color)) {
+            return styledName(displayName, color);
+        }
+
+        if (entry.nameComponent == null || !displayName.equals(entry.displayName)) {
+            entry.displayName = displayName;
+            entry.nameComponent = styledName(displayName, color);
+        }
+        return entry.nameComponent;
+    }
+
+    private static MutableText styledName(String displayName, TextColor color) {
+        MutableText nameComponent = Text.literal(displayName);
+        if (color != null) {
+            return nameComponent.styled(style -> style.withColor(color));
+        }
+        return nameComponent.formatted(Formatting.GOLD);
+    }
+
+    private static TextColor parseTwitchColor(String hex) {
+        if (hex == null || hex.isBlank()) {
+            return null;
+        }
+        String normalized = hex.startsWith("#") ? hex.substring(1) : hex;
+        if (normalized.length() != 6) {
+            return null;
+        }
+        try {
+            int rgb = Integer.parseUnsignedInt(normalized, 16);
+            return TextColor.fromRgb(rgb);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static TextColor adjustForReadability(TextColor color) {
+        if (color == null) {
+            return null;
+        }
+
+        int rgb = color.getRgb();
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+
+        double luminance = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+        double target = 160.0;
+        if (luminance >= target) {
+            return color;
+        }
+
+        double blend = Math.min(0.7, (target - luminance) / target);
+        int nr = (int) Math.round(r + (255 - r) * blend);
+        int ng = (int) Math.round(g + (255 - g) * blend);
+        int nb = (int) Math.round(b + (255 - b) * blend);
+
+        return TextColor.fromRgb((nr << 16) | (ng << 8) | nb);
+    }
+}
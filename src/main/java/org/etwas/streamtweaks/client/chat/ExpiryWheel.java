@@ -0,0 +1,104 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel. Deadlines are rounded up to whole ticks and hashed
+ * into a fixed ring of buckets, so scheduling is O(1) and advancing by one
+ * tick only looks at one bucket. A deadline more than a revolution away
+ * stays in its bucket until the wheel comes round to it. Each key has at
+ * most one deadline; scheduling it again replaces the old one. Not thread
+ * safe.
+ */
+final class ExpiryWheel<K> {
+    private final long origin;
+    private final long tickNanos;
+    private final List<Map<K, Long>> buckets;
+    private final int mask;
+    // Deadline tick of every scheduled key.
+    private final Map<K, Long> deadlines = new HashMap<>();
+    // The first tick that has not been processed yet.
+    private long nextTick;
+
+    ExpiryWheel(int bucketCount, long tickNanos, long nowNanos) {
+        if (Integer.bitCount(bucketCount) != 1) {
+            throw new IllegalArgumentException("bucket count must be a power of two");
+        }
+        this.origin = nowNanos;
+        this.tickNanos = tickNanos;
+        this.mask = bucketCount - 1;
+        this.buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new HashMap<>());
+        }
+        this.nextTick = tickOf(nowNanos) + 1;
+    }
+
+    boolean isScheduled(K key) {
+        return deadlines.containsKey(key);
+    }
+
+    /**
+     * Schedules {@code key} for {@code deadlineNanos} ({@link System#nanoTime()}
+     * scale). Deadlines already past fire on the next tick.
+     */
+    void schedule(K key, long deadlineNanos) {
+        long tick = Math.max(Math.ceilDiv(deadlineNanos - origin, tickNanos), nextTick);
+        Long previous = deadlines.put(key, tick);
+        if (previous != null) {
+            bucket(previous).remove(key);
+        }
+        bucket(tick).put(key, tick);
+    }
+
+    void clear() {
+        for (Map<K, Long> bucket : buckets) {
+            bucket.clear();
+        }
+        deadlines.clear();
+    }
+
+    /**
+     * Advances the wheel to {@code nowNanos} and passes every key whose
+     * deadline has come to {@code expired}, which may schedule it again.
+     */
+    void advance(long nowNanos, Consumer<K> expired) {
+        long target = tickOf(nowNanos);
+        if (target < nextTick) {
+            return;
+        }
+
+        // After a long stall every bucket is visited once at most.
+        long last = Math.min(target, nextTick + mask);
+        List<K> due = new ArrayList<>();
+        for (long tick = nextTick; tick <= last; tick++) {
+            Iterator<Map.Entry<K, Long>> iterator = bucket(tick).entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<K, Long> entry = iterator.next();
+                if (entry.getValue() <= target) {
+                    iterator.remove();
+                    deadlines.remove(entry.getKey());
+                    due.add(entry.getKey());
+                }
+            }
+        }
+        nextTick = target + 1;
+
+        for (K key : due) {
+            expired.accept(key);
+        }
+    }
+
+    private long tickOf(long nanos) {
+        return Math.floorDiv(nanos - origin, tickNanos);
+    }
+
+    private Map<K, Long> bucket(long tick) {
+        return buckets.get((int) (tick & mask));
+    }
+}
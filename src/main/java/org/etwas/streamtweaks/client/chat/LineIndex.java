@@ -0,0 +1,92 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.Arrays;
+
+/**
+ * Prefix sums of wrapped line counts (a Fenwick tree) over consecutive log
+ * positions, oldest first from {@link #base()}. New messages are appended in
+ * O(log n), and the overlay turns a scroll offset in lines into a message in
+ * O(log n) without wrapping every message; counts of messages that were never
+ * laid out are estimates and get corrected as they are drawn.
+ */
+final class LineIndex {
+    private int[] tree = new int[17];
+    private int[] counts = new int[16];
+    private long base;
+    private int size;
+
+    void reset(long base) {
+        this.base = base;
+        this.size = 0;
+    }
+
+    long base() {
+        return base;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds the next position after the indexed ones.
+     */
+    void append(int lineCount) {
+        if (size == counts.length) {
+            // Each node only covers nodes before it, so a copy stays valid.
+            counts = Arrays.copyOf(counts, size * 2);
+            tree = Arrays.copyOf(tree, size * 2 + 1);
+        }
+        counts[size] = lineCount;
+        int node = size + 1;
+        int sum = lineCount;
+        for (int i = node - 1, stop = node - (node & -node); i > stop; i -= i & -i) {
+            sum += tree[i];
+        }
+        tree[node] = sum;
+        size++;
+    }
+
+    void set(int index, int lineCount) {
+        int delta = lineCount - counts[index];
+        if (delta == 0) {
+            return;
+        }
+        counts[index] = lineCount;
+        for (int i = index + 1; i <= size; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Sum of the line counts of the first {@code count} positions.
+     */
+    int prefix(int count) {
+        int sum = 0;
+        for (int i = count; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    int total() {
+        return prefix(size);
+    }
+
+    /**
+     * Returns the index of the position that contains line {@code line}
+     * (0 = oldest line), or {@code size} if the index holds fewer lines.
+     */
+    int find(int line) {
+        int index = 0;
+        int remaining = line;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step > 0; step >>= 1) {
+            int next = index + step;
+            if (next <= size && tree[next] <= remaining) {
+                index = next;
+                remaining -= tree[next];
+            }
+        }
+        return index;
+    }
+}
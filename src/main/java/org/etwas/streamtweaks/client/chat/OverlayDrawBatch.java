@@ -0,0 +1,89 @@
+package org.etwas.streamtweaks.client.chat;
+
+import org.etwas.streamtweaks.client.emote.EmoteAtlas;
+
+import net.minecraft.client.font.TextRenderer;
+import net.minecraft.client.gl.RenderPipelines;
+import net.minecraft.client.gui.DrawContext;
+import net.minecraft.text.OrderedText;
+
+/**
+ * Collects the overlay lines of one frame and submits them in two passes:
+ * backgrounds first, with touching lines of the same colour merged into a
+ * single rectangle, then all text, then inline emotes from the shared atlas.
+ */
+final class OverlayDrawBatch {
+    private static final int LINE_HEIGHT = 9;
+    private static final int EMOTE_SIZE = 9;
+    private static final int EMOTE_OFFSET_X = 1;
+
+    private final OrderedText[] texts;
+    private final int[] ys;
+    private final int[] backgroundColors;
+    private final int[] textColors;
+    private final ChatLineLayoutCache.EmoteRun[][] emotes;
+    private int size;
+
+    OverlayDrawBatch(int maxLines) {
+        this.texts = new OrderedText[maxLines];
+        this.ys = new int[maxLines];
+        this.backgroundColors = new int[maxLines];
+        this.textColors = new int[maxLines];
+        this.emotes = new ChatLineLayoutCache.EmoteRun[maxLines][];
+    }
+
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            texts[i] = null;
+            emotes[i] = null;
+        }
+        size = 0;
+    }
+
+    void add(OrderedText text, ChatLineLayoutCache.EmoteRun[] lineEmotes, int y, int backgroundColor,
+            int textColor) {
+        texts[size] = text;
+        ys[size] = y;
+        backgroundColors[size] = backgroundColor;
+        textColors[size] = textColor;
+        emotes[size] = lineEmotes;
+        size++;
+    }
+
+    void drawBackgrounds(DrawContext context, int left, int right) {
+        // Lines are added bottom-up, so each run grows towards smaller y.
+        int runIndex = 0;
+        while (runIndex < size) {
+            int color = backgroundColors[runIndex];
+            int bottom = ys[runIndex] + LINE_HEIGHT;
+            int top = ys[runIndex];
+            int next = runIndex + 1;
+            while (next < size && backgroundColors[next] == color && ys[next] + LINE_HEIGHT >= top) {
+                top = Math.min(top, ys[next]);
+                next++;
+            }
+            context.fill(left, top, right, bottom, color);
+            runIndex = next;
+        }
+    }
+
+    void drawText(DrawContext context, TextRenderer textRenderer, boolean shadow) {
+        for (int i = 0; i < size; i++) {
+            context.drawText(textRenderer, texts[i], 0, ys[i], textColors[i], shadow);
+        }
+
+        EmoteAtlas atlas = EmoteAtlas.getInstance();
+        for (int i = 0; i < size; i++) {
+            for (ChatLineLayoutCache.EmoteRun emote : emotes[i]) {
+                EmoteAtlas.Sprite sprite = atlas.sprite(emote.emoteId());
+                if (sprite != null) {
+                    context.drawTexture(RenderPipelines.GUI_TEXTURED, EmoteAtlas.TEXTURE_ID,
+                            emote.x() + EMOTE_OFFSET_X, ys[i], sprite.u(), sprite.v(), EMOTE_SIZE, EMOTE_SIZE,
+                            EmoteAtlas.CELL_SIZE, EmoteAtlas.CELL_SIZE, EmoteAtlas.ATLAS_SIZE, EmoteAtlas.ATLAS_SIZE,
+                            textColors[i]);
+                }
+            }
+        }
+        atlas.flush();
+    }
+}
@@ -0,0 +1,83 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rolling per-phase timings of {@link TwitchChatOverlay#render}. Each phase
+ * keeps the last {@value #WINDOW} samples in a preallocated ring, so
+ * recording never allocates; percentiles are only computed when queried.
+ */
+public final class OverlayProfiler {
+    private static final int WINDOW = 1024;
+    private static final OverlayProfiler INSTANCE = new OverlayProfiler();
+
+    /**
+     * Render phases. {@code BUILD} (building line text) and {@code WRAP}
+     * (wrapping and measuring it) are per-frame totals that are part of
+     * {@code LAYOUT}.
+     */
+    public enum Phase {
+        SNAPSHOT,
+        LAYOUT,
+        BUILD,
+        WRAP,
+        FILL,
+        TEXT,
+        TOTAL
+    }
+
+    public record Stats(int samples, long p50Micros, long p99Micros, long maxMicros) {
+    }
+
+    private static final int PHASE_COUNT = Phase.values().length;
+
+    private final long[][] samples = new long[PHASE_COUNT][WINDOW];
+    private final int[] counts = new int[PHASE_COUNT];
+    private final int[] cursors = new int[PHASE_COUNT];
+    private final long[] scratch = new long[WINDOW];
+
+    private OverlayProfiler() {
+    }
+
+    public static OverlayProfiler getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void record(Phase phase, long nanos) {
+        int index = phase.ordinal();
+        samples[index][cursors[index]] = nanos;
+        cursors[index] = (cursors[index] + 1) % WINDOW;
+        if (counts[index] < WINDOW) {
+            counts[index]++;
+        }
+    }
+
+    public synchronized Stats stats(Phase phase) {
+        int index = phase.ordinal();
+        int count = counts[index];
+        if (count == 0) {
+            return new Stats(0, 0, 0, 0);
+        }
+
+        System.arraycopy(samples[index], 0, scratch, 0, count);
+        Arrays.sort(scratch, 0, count);
+        return new Stats(count,
+                toMicros(scratch[percentileIndex(count, 50)]),
+                toMicros(scratch[percentileIndex(count, 99)]),
+                toMicros(scratch[count - 1]));
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(cursors, 0);
+    }
+
+    private static int percentileIndex(int count, int percentile) {
+        return Math.min(count - 1, (int) Math.ceil(count * percentile / 100.0) - 1);
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,68 @@
+package org.etwas.streamtweaks.client.chat;
+
+/**
+ * Steps the overlay's quality down while its measured render cost stays over
+ * the configured budget, and back up once there is clear headroom again.
+ * Separate thresholds and frame counts for each direction keep it from
+ * flickering between levels.
+ */
+final class OverlayQualityGovernor {
+    private static final double SMOOTHING = 0.1;
+    private static final double HEADROOM_RATIO = 0.5;
+    private static final int DEGRADE_AFTER_FRAMES = 10;
+    private static final int RESTORE_AFTER_FRAMES = 120;
+
+    /**
+     * Degradation steps; each level also applies everything before it.
+     */
+    enum Level {
+        FULL,
+        REDUCED_LINES,
+        NO_BACKGROUND,
+        NO_SHADOW;
+
+        boolean atLeast(Level other) {
+            return ordinal() >= other.ordinal();
+        }
+    }
+
+    private static final Level[] LEVELS = Level.values();
+
+    private Level level = Level.FULL;
+    private double averageNanos;
+    private int overBudgetFrames;
+    private int underBudgetFrames;
+
+    Level level() {
+        return level;
+    }
+
+    void update(long frameNanos, long budgetNanos) {
+        if (budgetNanos <= 0) {
+            level = Level.FULL;
+            averageNanos = 0;
+            overBudgetFrames = 0;
+            underBudgetFrames = 0;
+            return;
+        }
+
+        averageNanos = averageNanos == 0 ? frameNanos : averageNanos + (frameNanos - averageNanos) * SMOOTHING;
+
+        if (averageNanos > budgetNanos) {
+            underBudgetFrames = 0;
+            if (++overBudgetFrames >= DEGRADE_AFTER_FRAMES && level.ordinal() < LEVELS.length - 1) {
+                level = LEVELS[level.ordinal() + 1];
+                overBudgetFrames = 0;
+            }
+        } else if (averageNanos < budgetNanos * HEADROOM_RATIO) {
+            overBudgetFrames = 0;
+            if (++underBudgetFrames >= RESTORE_AFTER_FRAMES && level != Level.FULL) {
+                level = LEVELS[level.ordinal() - 1];
+                underBudgetFrames = 0;
+            }
+        } else {
+            overBudgetFrames = 0;
+            underBudgetFrames = 0;
+        }
+    }
+}
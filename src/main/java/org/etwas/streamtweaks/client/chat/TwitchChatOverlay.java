@@ -1,17 +1,13 @@
 package org.etwas.streamtweaks.client.chat;
 
-import java.time.Duration;
-import java.time.Instant;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.etwas.streamtweaks.config.StreamTweaksConfig;
-import org.etwas.streamtweaks.mixin.ChatHudAccessor;
 
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.font.TextRenderer;
 import net.minecraft.client.gui.DrawContext;
 import net.minecraft.client.gui.hud.ChatHud;
-import net.minecraft.client.gui.hud.ChatHudLine;
 import net.minecraft.text.MutableText;
 import net.minecraft.text.OrderedText;
 import net.minecraft.text.Text;
@@ -26,13 +22,48 @@ public final class TwitchChatOverlay {
     private static final int MAX_VISIBLE_LINES = 100;
     private static final long FADE_START_MILLIS = 10_000L;
     private static final long FADE_END_MILLIS = 11_000L;
+    private static final long FADE_START_NANOS = TimeUnit.MILLISECONDS.toNanos(FADE_START_MILLIS);
+    private static final long FADE_END_NANOS = TimeUnit.MILLISECONDS.toNanos(FADE_END_MILLIS);
+    private static final long NEVER_EXPIRES_NANOS = Long.MAX_VALUE / 2;
+    // Three spaces leave room for a 9px emote plus padding.
+    private static final String EMOTE_PLACEHOLDER = "   ";
 
     private static final TwitchChatOverlay INSTANCE = new TwitchChatOverlay();
     private static final float BACKGROUND_ALPHA_MULTIPLIER = 0.5F;
-    private static final float VANILLA_ALPHA_CUTOFF = 1.0E-5F;
+    private static final int SCROLL_LINES = 7;
+    // Shared by every line; never modified after construction.
+    private static final Text TWITCH_PREFIX = Text.literal("[Twitch] ").formatted(Formatting.LIGHT_PURPLE);
+    private static final Text MESSAGE_SEPARATOR = Text.literal(": ").formatted(Formatting.GRAY);
+    private static final Text ACTION_SEPARATOR = Text.literal(" ").formatted(Formatting.GRAY);
+    private static final String REPLY_MARKER_KEY = "message.stream-tweaks.replyingTo";
     private static final ConfigHolder<StreamTweaksConfig> CONFIG_HOLDER = AutoConfig
             .getConfigHolder(StreamTweaksConfig.class);
 
+    private final ChatLineLayoutCache layoutCache = new ChatLineLayoutCache();
+    private final OverlayDrawBatch drawBatch = new OverlayDrawBatch(MAX_VISIBLE_LINES);
+    private final LineIndex lineIndex = new LineIndex();
+    private final ArchiveScrollback scrollback = new ArchiveScrollback();
+    private final OverlayQualityGovernor qualityGovernor = new OverlayQualityGovernor();
+    private Object lineIndexEpoch;
+    private int lineIndexWidth = -1;
+    // Whether the last laid-out frame was scrolled and used the line index.
+    private boolean lineIndexFollowing;
+    private FrameKey cachedFrameKey;
+    private long cachedFrameValidUntil;
+    private int scrolledLines;
+    // Empty until a frame is drawn.
+    private double scrollAreaRight = -1;
+    private double scrollAreaTop;
+    private double scrollAreaBottom = -1;
+
+    /**
+     * Everything besides the clock that the laid-out frame depends on.
+     */
+    private record FrameKey(long logVersion, boolean focused, TextRenderer textRenderer, int chatWidth,
+            int chatHeight, float scale, double lineSpacing, float opacity, double overlayBottomY, int scrolledLines,
+            long scrollbackVersion, OverlayQualityGovernor.Level quality) {
+    }
+
     private TwitchChatOverlay() {
     }
 
@@ -43,27 +74,36 @@ public final class TwitchChatOverlay {
     public void render(ChatHud chatHud, DrawContext context, int ticks, boolean focused) {
         MinecraftClient client = MinecraftClient.getInstance();
         if (client == null) {
+            hide();
             return;
         }
 
         StreamTweaksConfig config = CONFIG_HOLDER.getConfig();
         if (config == null || !config.showStreamChat) {
+            hide();
             return;
         }
 
         if (client.options.hudHidden) {
+            hide();
             return;
         }
 
         Object visibility = client.options.getChatVisibility().getValue();
         if (visibility instanceof Enum<?> enumVisibility && "HIDDEN".equals(enumVisibility.name())) {
+            hide();
             return;
         }
 
-        List<ChatMessage> messages = ChatMessageLog.getInstance().snapshot();
+        OverlayProfiler profiler = OverlayProfiler.getInstance();
+        long renderStart = System.nanoTime();
+        ChatMessageLog.View messages = ChatMessageLog.getInstance().view();
         if (messages.isEmpty()) {
+            hide();
             return;
         }
+        long frameNanos = System.nanoTime();
+        profiler.record(OverlayProfiler.Phase.SNAPSHOT, frameNanos - renderStart);
 
         TextRenderer textRenderer = client.textRenderer;
         float scale = (float) chatHud.getChatScale();
@@ -73,7 +113,7 @@ public final class TwitchChatOverlay {
         double lineAdvance = 9.0 + lineSpacing * 9.0;
         float opacity = client.options.getChatOpacity().getValue().floatValue();
 
-        int vanillaRenderedLineCount = computeVanillaRenderedLineCount(chatHud, ticks, focused);
+        int vanillaRenderedLineCount = VanillaChatLineTracker.getInstance().renderedLineCount(chatHud, ticks, focused);
         int scaledHeight = context.getScaledWindowHeight();
         int vanillaBottomY = MathHelper.floor((scaledHeight - 40) / scale);
         double overlayBottomY = vanillaRenderedLineCount > 0
@@ -81,88 +121,253 @@ public final class TwitchChatOverlay {
                 : vanillaBottomY;
         double baseOffset = overlayBottomY - 9.0;
 
+        if (!focused) {
+            scrolledLines = 0;
+        }
+        if (scrolledLines > 0) {
+            scrollback.poll();
+        } else {
+            scrollback.reset();
+        }
+        scrollAreaRight = (chatWidth + 8) * scale;
+        scrollAreaTop = (overlayBottomY - chatHeight) * scale;
+        scrollAreaBottom = overlayBottomY * scale;
+
+        OverlayQualityGovernor.Level quality = qualityGovernor.level();
+        FrameKey frameKey = new FrameKey(messages.version(), focused, textRenderer, chatWidth, chatHeight, scale,
+                lineSpacing, opacity, overlayBottomY, scrolledLines, scrollback.version(), quality);
+        if (!config.cacheOverlayFrames || !frameKey.equals(cachedFrameKey)
+                || frameNanos - cachedFrameValidUntil >= 0) {
+            long layoutStart = System.nanoTime();
+            cachedFrameValidUntil = buildFrame(messages, textRenderer, chatWidth, chatHeight, scale, lineAdvance,
+                    opacity, focused, baseOffset, frameNanos, quality);
+            cachedFrameKey = frameKey;
+            profiler.record(OverlayProfiler.Phase.LAYOUT, System.nanoTime() - layoutStart);
+            profiler.record(OverlayProfiler.Phase.BUILD, layoutCache.buildNanos());
+            profiler.record(OverlayProfiler.Phase.WRAP, layoutCache.wrapNanos());
+        }
+
         context.getMatrices().pushMatrix();
         context.getMatrices().scale(scale, scale);
         context.getMatrices().translate(4.0F, 0.0F);
+        long fillStart = System.nanoTime();
+        if (!quality.atLeast(OverlayQualityGovernor.Level.NO_BACKGROUND)) {
+            drawBatch.drawBackgrounds(context, -4, chatWidth + 4);
+        }
+        long textStart = System.nanoTime();
+        drawBatch.drawText(context, textRenderer, !quality.atLeast(OverlayQualityGovernor.Level.NO_SHADOW));
+        long renderEnd = System.nanoTime();
+        context.getMatrices().popMatrix();
+
+        profiler.record(OverlayProfiler.Phase.FILL, textStart - fillStart);
+        profiler.record(OverlayProfiler.Phase.TEXT, renderEnd - textStart);
+        profiler.record(OverlayProfiler.Phase.TOTAL, renderEnd - renderStart);
+        qualityGovernor.update(renderEnd - renderStart,
+                TimeUnit.MICROSECONDS.toNanos(config.overlayFrameBudgetMicros));
+    }
 
+    /**
+     * Lays out the visible lines into {@link #drawBatch} and returns the time
+     * ({@link System#nanoTime()} scale) until which the result stays valid for
+     * the same frame key.
+     */
+    private long buildFrame(ChatMessageLog.View messages, TextRenderer textRenderer, int chatWidth, int chatHeight,
+            float scale, double lineAdvance, float opacity, boolean focused, double baseOffset, long frameNanos,
+            OverlayQualityGovernor.Level quality) {
+        drawBatch.clear();
+        layoutCache.beginFrame(textRenderer, chatWidth, scale, messages.version());
+
+        long validUntil = frameNanos + NEVER_EXPIRES_NANOS;
         int renderedLineCount = 0;
         int maxLines = Math.min(MAX_VISIBLE_LINES, (int) (chatHeight / Math.max(lineAdvance, 1.0)));
+        if (quality.atLeast(OverlayQualityGovernor.Level.REDUCED_LINES)) {
+            maxLines /= 2;
+        }
+
+        int oldestIndex = focused ? 0
+                : messages.firstIndexReceivedAfter(frameNanos - FADE_END_NANOS);
+        int newestIndex = messages.size() - 1;
+        int skipLines = 0;
+        int archivedSkipLines = 0;
+        boolean indexed = focused && scrolledLines > 0;
+        int firstIndexed = 0;
+        if (indexed) {
+            // Keep the viewport on the same lines while new messages arrive.
+            scrolledLines += updateLineIndex(messages, chatWidth);
+            firstIndexed = (int) (messages.firstPosition() - lineIndex.base());
+            int totalLines = lineIndex.total();
+            int viewLines = totalLines - lineIndex.prefix(firstIndexed);
+            int archivedLines = followScrollback(messages);
+            if (scrolledLines + maxLines >= viewLines + archivedLines) {
+                scrollback.requestOlder();
+            }
+            scrolledLines = Math.min(scrolledLines, Math.max(0, viewLines + archivedLines - maxLines));
+            if (scrolledLines < viewLines) {
+                int bottomLine = totalLines - scrolledLines;
+                int position = lineIndex.find(bottomLine - 1);
+                newestIndex = Math.min(position - firstIndexed, newestIndex);
+                skipLines = Math.max(0, lineIndex.prefix(position + 1) - bottomLine);
+            } else {
+                newestIndex = -1;
+                archivedSkipLines = scrolledLines - viewLines;
+            }
+        }
+        lineIndexFollowing = indexed;
 
-        for (int i = messages.size() - 1; i >= 0; i--) {
+        for (int i = newestIndex; i >= oldestIndex; i--) {
             ChatMessage message = messages.get(i);
             if (renderedLineCount >= maxLines) {
                 break;
             }
-
-            float lineAlpha = computeAlpha(message.receivedAt(), opacity, focused);
-            if (lineAlpha <= 0.01F) {
+            if (message == null) {
+                if (indexed) {
+                    lineIndex.set(firstIndexed + i, 0);
+                }
                 continue;
             }
 
-            MutableText line = buildLine(message);
-            List<OrderedText> wrapped = textRenderer.wrapLines(line, chatWidth);
-            for (int j = wrapped.size() - 1; j >= 0; j--) {
-                if (renderedLineCount >= maxLines) {
-                    break;
+            float lineAlpha = computeAlpha(message.receivedAtNanos(), frameNanos, opacity, focused);
+            if (!focused) {
+                long fadeStart = message.receivedAtNanos() + FADE_START_NANOS;
+                long changesAt = fadeStart - frameNanos > 0 ? fadeStart : frameNanos;
+                if (changesAt - validUntil < 0) {
+                    validUntil = changesAt;
                 }
+            }
+            if (lineAlpha <= 0.01F) {
+                continue;
+            }
 
-                OrderedText orderedText = wrapped.get(j);
-                int y = MathHelper.floor(-renderedLineCount * lineAdvance + baseOffset);
-                int backgroundAlpha = MathHelper.ceil(MathHelper.clamp(lineAlpha, 0.0F, 1.0F)
-                        * 255.0F * BACKGROUND_ALPHA_MULTIPLIER);
-                int backgroundColor = backgroundAlpha << 24;
-                context.fill(-4, y - 0, chatWidth + 4, y + 9, backgroundColor);
-                context.drawTextWithShadow(textRenderer, orderedText, 0, y,
-                        ((int) (lineAlpha * 255.0F) << 24) | 0xFFFFFF);
+            ChatLineLayoutCache.Layout layout = layoutCache.get(message, this::buildLine);
+            if (indexed) {
+                lineIndex.set(firstIndexed + i, layout.lineCount());
+            }
+            renderedLineCount = addLines(layout, skipLines, renderedLineCount, maxLines, lineAlpha, lineAdvance,
+                    baseOffset);
+            skipLines = 0;
+        }
 
-                renderedLineCount++;
+        // Scrolled past the log: go on with the archived messages below it.
+        for (int k = 0; indexed && k < scrollback.size() && renderedLineCount < maxLines; k++) {
+            ChatLineLayoutCache.Layout layout = layoutCache.get(scrollback.get(k), this::buildLine);
+            if (archivedSkipLines >= layout.lineCount()) {
+                archivedSkipLines -= layout.lineCount();
+                continue;
             }
+            renderedLineCount = addLines(layout, archivedSkipLines, renderedLineCount, maxLines, opacity,
+                    lineAdvance, baseOffset);
+            archivedSkipLines = 0;
         }
 
-        context.getMatrices().popMatrix();
+        layoutCache.endFrame();
+        return validUntil;
     }
 
-    private int computeVanillaRenderedLineCount(ChatHud chatHud, int currentTick, boolean focused) {
-        if (!(chatHud instanceof ChatHudAccessor accessor)) {
-            return 0;
-        }
+    /**
+     * Adds the lines of one message above the ones already in
+     * {@link #drawBatch}, newest line first, leaving out its newest
+     * {@code skipLines}. Returns the new number of rendered lines.
+     */
+    private int addLines(ChatLineLayoutCache.Layout layout, int skipLines, int renderedLineCount, int maxLines,
+            float lineAlpha, double lineAdvance, double baseOffset) {
+        for (int j = layout.lineCount() - 1 - skipLines; j >= 0; j--) {
+            if (renderedLineCount >= maxLines) {
+                break;
+            }
 
-        List<ChatHudLine.Visible> visibleMessages = accessor.streamTweaks$getVisibleMessages();
-        if (visibleMessages.isEmpty()) {
-            return 0;
-        }
+            OrderedText orderedText = layout.line(j);
+            int y = MathHelper.floor(-renderedLineCount * lineAdvance + baseOffset);
+            int backgroundAlpha = MathHelper.ceil(MathHelper.clamp(lineAlpha, 0.0F, 1.0F)
+                    * 255.0F * BACKGROUND_ALPHA_MULTIPLIER);
+            int backgroundColor = backgroundAlpha << 24;
+            drawBatch.add(orderedText, layout.emotes(j), y, backgroundColor,
+                    ((int) (lineAlpha * 255.0F) << 24) | 0xFFFFFF);
 
-        int clampedScroll = MathHelper.clamp(accessor.streamTweaks$getScrolledLines(), 0, visibleMessages.size());
-        int visibleLineCap = Math.min(chatHud.getVisibleLineCount(), visibleMessages.size());
-        int consideredLines = Math.min(visibleMessages.size() - clampedScroll, visibleLineCap);
-        if (consideredLines <= 0) {
-            return 0;
+            renderedLineCount++;
         }
+        return renderedLineCount;
+    }
 
-        int renderedLines = 0;
-        for (int index = consideredLines - 1; index >= 0; index--) {
-            ChatHudLine.Visible line = visibleMessages.get(index + clampedScroll);
-            int age = currentTick - line.addedTime();
-            float lineAlpha = focused ? 1.0F : (float) getVanillaMessageOpacityMultiplier(age);
-            if (lineAlpha > VANILLA_ALPHA_CUTOFF) {
-                renderedLines++;
+    /**
+     * Points {@link #scrollback} at the shown channel and returns how many
+     * lines the loaded archived messages take up.
+     */
+    private int followScrollback(ChatMessageLog.View messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            ChatMessage oldest = messages.get(i);
+            long sequence = messages.sequence(i);
+            if (oldest == null || sequence < 0) {
+                continue;
             }
+            scrollback.follow(oldest.source(), oldest.channelId(), sequence);
+            break;
         }
 
-        return renderedLines;
+        int lines = 0;
+        for (int k = 0; k < scrollback.size(); k++) {
+            lines += layoutCache.get(scrollback.get(k), this::buildLine).lineCount();
+        }
+        return lines;
     }
 
-    private static double getVanillaMessageOpacityMultiplier(int age) {
-        double value = age / 200.0;
-        value = 1.0 - value;
-        value *= 10.0;
-        value = MathHelper.clamp(value, 0.0, 1.0);
-        return value * value;
+    /**
+     * Forgets the scroll state and area of the last drawn frame, so a
+     * hidden overlay does not swallow scrolling meant for the vanilla chat.
+     */
+    private void hide() {
+        scrolledLines = 0;
+        scrollback.reset();
+        scrollAreaRight = -1;
+        scrollAreaTop = 0;
+        scrollAreaBottom = -1;
     }
 
-    private MutableText buildLine(ChatMessage message) {
-        MutableText prefix = Text.literal("[Twitch] ").formatted(Formatting.LIGHT_PURPLE);
+    /**
+     * Scrolls the Twitch history if the mouse is over the overlay. Returns
+     * whether the scroll was consumed.
+     */
+    public boolean scroll(double mouseX, double mouseY, double amount) {
+        if (mouseX < 0 || mouseX > scrollAreaRight || mouseY < scrollAreaTop || mouseY > scrollAreaBottom) {
+            return false;
+        }
+        scrolledLines = Math.max(0, scrolledLines + (int) Math.signum(amount) * SCROLL_LINES);
+        return true;
+    }
+
+    /**
+     * Appends the messages received since the last update to the line index
+     * and returns how many lines they added while the overlay stayed
+     * scrolled. The index is rebuilt when the log's positions or the width
+     * change, or when evicted messages make up most of it.
+     */
+    private int updateLineIndex(ChatMessageLog.View messages, int chatWidth) {
+        long first = messages.firstPosition();
+        long indexedEnd = lineIndex.base() + lineIndex.size();
+        boolean sameLines = lineIndexEpoch == messages.positionEpoch() && lineIndexWidth == chatWidth;
+        if (!sameLines || first < lineIndex.base() || first - lineIndex.base() > lineIndex.size() / 2) {
+            lineIndex.reset(first);
+        }
+
+        int appendedLines = 0;
+        long end = first + messages.size();
+        for (long position = lineIndex.base() + lineIndex.size(); position < end; position++) {
+            ChatMessage message = messages.get((int) (position - first));
+            int lineCount = 0;
+            if (message != null) {
+                lineCount = layoutCache.lineCount(message);
+                lineCount = lineCount >= 0 ? lineCount : 1;
+            }
+            lineIndex.append(lineCount);
+            if (sameLines && lineIndexFollowing && position >= indexedEnd) {
+                appendedLines += lineCount;
+            }
+        }
+        lineIndexEpoch = messages.positionEpoch();
+        lineIndexWidth = chatWidth;
+        return appendedLines;
+    }
 
+    private MutableText buildLine(ChatMessage message) {
         String displayName = message.chatterDisplayName();
         if (displayName == null || displayName.isBlank()) {
             displayName = message.chatterLogin() != null && !message.chatterLogin().isBlank()
@@ -170,21 +375,16 @@ public final class TwitchChatOverlay {
                     : "Unknown";
         }
 
-        MutableText nameComponent = Text.literal(displayName);
         TextColor color = message.color();
-        if (color != null) {
-            nameComponent = nameComponent.styled(style -> style.withColor(color));
-        } else {
-            nameComponent = nameComponent.formatted(Formatting.GOLD);
+        MutableText line = Text.empty();
+        if (message.reply() != null) {
+            line.append(buildReplyMarker(message)).append("\n");
         }
+        line.append(TWITCH_PREFIX)
+                .append(ChatterStyleCache.getInstance().nameComponent(message.chatterUserId(), displayName, color))
+                .append(message.action() ? ACTION_SEPARATOR : MESSAGE_SEPARATOR);
 
-        prefix.append(nameComponent);
-
-        MutableText separator = Text.literal(message.action() ? " " : ": ").formatted(Formatting.GRAY);
-        prefix.append(separator);
-
-        String bodyText = message.body() != null ? message.body() : "";
-        MutableText body = Text.literal(bodyText).formatted(Formatting.WHITE);
+        MutableText body = buildBody(message).formatted(Formatting.WHITE);
         if (message.action()) {
             body = body.formatted(Formatting.ITALIC);
             if (color != null) {
@@ -192,20 +392,51 @@ public final class TwitchChatOverlay {
             }
         }
 
-        prefix.append(body);
-        return prefix;
+        line.append(body);
+        return line;
     }
 
-    private float computeAlpha(Instant timestamp, float opacity, boolean focused) {
-        if (timestamp == null) {
-            return opacity;
+    private static MutableText buildReplyMarker(ChatMessage message) {
+        ChatMessage parent = ChatReplyIndex.getInstance().parentOf(message);
+        ChatMessage.Reply reply = message.reply();
+        String parentName = parent != null ? parent.chatterDisplayName() : reply.parentUserName();
+        if (parentName == null || parentName.isBlank()) {
+            parentName = reply.parentUserLogin() != null ? reply.parentUserLogin() : "Unknown";
+        }
+        MutableText name = Text.literal("@" + parentName);
+        if (parent != null && parent.color() != null) {
+            name = name.styled(style -> style.withColor(parent.color()));
+        }
+        return Text.translatable(REPLY_MARKER_KEY, name).formatted(Formatting.GRAY);
+    }
+
+    private static MutableText buildBody(ChatMessage message) {
+        boolean hasEmotes = false;
+        for (ChatMessage.Fragment fragment : message.fragments()) {
+            hasEmotes |= fragment instanceof ChatMessage.EmoteFragment;
         }
+        if (!hasEmotes) {
+            return Text.literal(message.body() != null ? message.body() : "");
+        }
+
+        MutableText body = Text.empty();
+        for (ChatMessage.Fragment fragment : message.fragments()) {
+            if (fragment instanceof ChatMessage.EmoteFragment emote) {
+                String insertion = ChatLineLayoutCache.EMOTE_INSERTION_PREFIX + emote.emoteId();
+                body.append(Text.literal(EMOTE_PLACEHOLDER).styled(style -> style.withInsertion(insertion)));
+            } else {
+                body.append(fragment.getString());
+            }
+        }
+        return body;
+    }
 
-        long ageMillis = Duration.between(timestamp, Instant.now()).toMillis();
+    private float computeAlpha(long receivedAtNanos, long frameNanos, float opacity, boolean focused) {
         if (focused) {
             return opacity;
         }
 
+        long ageMillis = TimeUnit.NANOSECONDS.toMillis(frameNanos - receivedAtNanos);
         if (ageMillis >= FADE_END_MILLIS) {
             return 0.0F;
         }
@@ -0,0 +1,97 @@
+package org.etwas.streamtweaks.client.chat;
+
+import java.util.List;
+
+import org.etwas.streamtweaks.mixin.ChatHudAccessor;
+
+import net.minecraft.client.gui.hud.ChatHud;
+import net.minecraft.client.gui.hud.ChatHudLine;
+import net.minecraft.util.math.MathHelper;
+
+/**
+ * Caches how many vanilla chat lines are currently drawn so the Twitch
+ * overlay can sit above them. The count is recomputed only when the vanilla
+ * chat changes (reported by {@code ChatHudMixin}), when focus or size changes,
+ * or when the next counted line reaches the end of its fade.
+ */
+public final class VanillaChatLineTracker {
+    private static final VanillaChatLineTracker INSTANCE = new VanillaChatLineTracker();
+    private static final float VANILLA_ALPHA_CUTOFF = 1.0E-5F;
+    private static final int VANILLA_FADE_TICKS = 200;
+
+    private boolean dirty = true;
+    private boolean cachedFocused;
+    private int cachedSize = -1;
+    private int cachedLineCap = -1;
+    private int cachedCount;
+    private int expiryTick = Integer.MAX_VALUE;
+
+    private VanillaChatLineTracker() {
+    }
+
+    public static VanillaChatLineTracker getInstance() {
+        return INSTANCE;
+    }
+
+    public void invalidate() {
+        dirty = true;
+    }
+
+    public int renderedLineCount(ChatHud chatHud, int currentTick, boolean focused) {
+        if (!(chatHud instanceof ChatHudAccessor accessor)) {
+            return 0;
+        }
+
+        List<ChatHudLine.Visible> visibleMessages = accessor.streamTweaks$getVisibleMessages();
+        int lineCap = chatHud.getVisibleLineCount();
+        if (dirty || focused != cachedFocused || currentTick >= expiryTick
+                || visibleMessages.size() != cachedSize || lineCap != cachedLineCap) {
+            cachedCount = computeRenderedLineCount(visibleMessages, accessor.streamTweaks$getScrolledLines(),
+                    lineCap, currentTick, focused);
+            cachedFocused = focused;
+            cachedSize = visibleMessages.size();
+            cachedLineCap = lineCap;
+            dirty = false;
+        }
+        return cachedCount;
+    }
+
+    private int computeRenderedLineCount(List<ChatHudLine.Visible> visibleMessages, int scrolledLines, int lineCap,
+            int currentTick, boolean focused) {
+        expiryTick = Integer.MAX_VALUE;
+        if (visibleMessages.isEmpty()) {
+            return 0;
+        }
+
+        int clampedScroll = MathHelper.clamp(scrolledLines, 0, visibleMessages.size());
+        int visibleLineCap = Math.min(lineCap, visibleMessages.size());
+        int consideredLines = Math.min(visibleMessages.size() - clampedScroll, visibleLineCap);
+        if (consideredLines <= 0) {
+            return 0;
+        }
+
+        if (focused) {
+            return consideredLines;
+        }
+
+        int renderedLines = 0;
+        for (int index = consideredLines - 1; index >= 0; index--) {
+            ChatHudLine.Visible line = visibleMessages.get(index + clampedScroll);
+            int age = currentTick - line.addedTime();
+            if ((float) getVanillaMessageOpacityMultiplier(age) > VANILLA_ALPHA_CUTOFF) {
+                renderedLines++;
+                expiryTick = Math.min(expiryTick, line.addedTime() + VANILLA_FADE_TICKS);
+            }
+        }
+
+        return renderedLines;
+    }
+
+    private static double getVanillaMessageOpacityMultiplier(int age) {
+        double value = age / (double) VANILLA_FADE_TICKS;
+        value = 1.0 - value;
+        value *= 10.0;
+        value = MathHelper.clamp(value, 0.0, 1.0);
+        return value * value;
+    }
+}
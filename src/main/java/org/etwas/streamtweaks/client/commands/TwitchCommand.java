@@ -1,8 +1,16 @@
 package org.etwas.streamtweaks.client.commands;
 
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 import java.util.concurrent.CompletionException;
 
 import org.etwas.streamtweaks.StreamTweaks;
+import org.etwas.streamtweaks.client.chat.ChatMessage;
+import org.etwas.streamtweaks.client.chat.ChatMessageLog;
+import org.etwas.streamtweaks.client.chat.ChatReplyIndex;
+import org.etwas.streamtweaks.client.chat.ChatSearchIndex;
+import org.etwas.streamtweaks.client.chat.OverlayProfiler;
 import org.etwas.streamtweaks.client.ui.MessageTexts;
 import org.etwas.streamtweaks.twitch.service.TwitchService;
 import org.etwas.streamtweaks.utils.ChatMessageUtil;
@@ -16,6 +24,11 @@ import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
 import net.minecraft.text.Text;
 
 public final class TwitchCommand {
+    private static final String SEARCH_USER_PREFIX = "user:";
+    private static final int SEARCH_RESULT_LIMIT = 10;
+    private static final DateTimeFormatter SEARCH_TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm")
+            .withZone(ZoneId.systemDefault());
+
     public static void register(CommandDispatcher<FabricClientCommandSource> dispatcher) {
         dispatcher.register(
                 ClientCommandManager.literal("twitch")
@@ -24,7 +37,18 @@ public final class TwitchCommand {
                                 .then(ClientCommandManager.argument("login", StringArgumentType.word())
                                         .executes(TwitchCommand::connectWithLogin)))
                         .then(ClientCommandManager.literal("disconnect")
-                                .executes(ctx -> TwitchCommand.disconnect(ctx))));
+                                .executes(ctx -> TwitchCommand.disconnect(ctx)))
+                        .then(ClientCommandManager.literal("search")
+                                .then(ClientCommandManager.argument("query", StringArgumentType.greedyString())
+                                        .executes(TwitchCommand::search)))
+                        .then(ClientCommandManager.literal("thread")
+                                .executes(TwitchCommand::thread)
+                                .then(ClientCommandManager.argument("login", StringArgumentType.word())
+                                        .executes(TwitchCommand::threadOfUser)))
+                        .then(ClientCommandManager.literal("profile")
+                                .executes(TwitchCommand::profile)
+                                .then(ClientCommandManager.literal("reset")
+                                        .executes(TwitchCommand::resetProfile))));
     }
 
     private static int connect(CommandContext<FabricClientCommandSource> context) {
@@ -73,4 +97,98 @@ public final class TwitchCommand {
 
         return 1;
     }
+
+    private static int search(CommandContext<FabricClientCommandSource> context) {
+        String query = StringArgumentType.getString(context, "query").trim();
+        StringBuilder terms = new StringBuilder();
+        String login = null;
+        for (String word : query.split("\\s+")) {
+            if (word.regionMatches(true, 0, SEARCH_USER_PREFIX, 0, SEARCH_USER_PREFIX.length())) {
+                login = word.substring(SEARCH_USER_PREFIX.length()).replaceFirst("^@", "");
+            } else {
+                terms.append(word).append(' ');
+            }
+        }
+
+        ChatSearchIndex.getInstance()
+                .search(terms.toString(), login, SEARCH_RESULT_LIMIT)
+                .whenComplete((hits, throwable) -> {
+                    if (throwable != null) {
+                        StreamTweaks.LOGGER.error("Chat search failed", throwable);
+                        ChatMessageUtil.sendMessage(() -> MessageTexts.searchFailed());
+                        return;
+                    }
+                    if (hits.isEmpty()) {
+                        ChatMessageUtil.sendMessage(() -> MessageTexts.searchNoResults(query));
+                        return;
+                    }
+                    ChatMessageUtil.sendMessage(() -> MessageTexts.searchHeader(query, hits.size()));
+                    for (int i = hits.size() - 1; i >= 0; i--) {
+                        ChatMessage hit = hits.get(i);
+                        ChatMessageUtil.sendMessage(() -> MessageTexts.searchResult(
+                                SEARCH_TIME_FORMAT.format(hit.receivedAt()), hit.chatterDisplayName(), hit.body()));
+                    }
+                });
+
+        return 1;
+    }
+
+    private static int thread(CommandContext<FabricClientCommandSource> context) {
+        return thread(context, null);
+    }
+
+    private static int threadOfUser(CommandContext<FabricClientCommandSource> context) {
+        String login = StringArgumentType.getString(context, "login").replaceFirst("^@", "");
+        return thread(context, login);
+    }
+
+    private static int thread(CommandContext<FabricClientCommandSource> context, String login) {
+        ChatReplyIndex.ReplyThread thread = ChatReplyIndex.getInstance().latestThread(login);
+        if (thread == null) {
+            context.getSource().sendFeedback(MessageTexts.threadNotFound());
+            return 1;
+        }
+
+        String rootName = thread.root() != null
+                ? thread.root().chatterDisplayName()
+                : thread.replies().get(0).reply().threadUserName();
+        if (rootName == null) {
+            rootName = "Unknown";
+        }
+        context.getSource().sendFeedback(MessageTexts.threadHeader(rootName, thread.replies().size()));
+        if (thread.root() != null) {
+            sendThreadMessage(context, thread.root());
+        }
+        for (ChatMessage reply : thread.replies()) {
+            sendThreadMessage(context, reply);
+        }
+
+        return 1;
+    }
+
+    private static void sendThreadMessage(CommandContext<FabricClientCommandSource> context, ChatMessage message) {
+        context.getSource().sendFeedback(MessageTexts.searchResult(
+                SEARCH_TIME_FORMAT.format(message.receivedAt()), message.chatterDisplayName(), message.body()));
+    }
+
+    private static int profile(CommandContext<FabricClientCommandSource> context) {
+        OverlayProfiler profiler = OverlayProfiler.getInstance();
+        context.getSource().sendFeedback(MessageTexts.overlayProfileHeader());
+        for (OverlayProfiler.Phase phase : OverlayProfiler.Phase.values()) {
+            OverlayProfiler.Stats stats = profiler.stats(phase);
+            context.getSource().sendFeedback(MessageTexts.overlayProfilePhase(phase.name().toLowerCase(Locale.ROOT),
+                    stats.p50Micros(), stats.p99Micros(), stats.maxMicros(), stats.samples()));
+        }
+        ChatMessageLog.View log = ChatMessageLog.getInstance().view();
+        context.getSource().sendFeedback(MessageTexts.chatLogFootprint(log.liveCount(), log.retainedBytes() / 1024));
+
+        return 1;
+    }
+
+    private static int resetProfile(CommandContext<FabricClientCommandSource> context) {
+        OverlayProfiler.getInstance().reset();
+        context.getSource().sendFeedback(MessageTexts.overlayProfileReset());
+
+        return 1;
+    }
 }
@@ -0,0 +1,169 @@
+package org.etwas.streamtweaks.client.emote;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.etwas.streamtweaks.StreamTweaks;
+import org.etwas.streamtweaks.utils.BackoffPolicy;
+import org.etwas.streamtweaks.utils.ExponentialBackoffPolicy;
+import org.etwas.streamtweaks.utils.ThreadPools;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.texture.NativeImage;
+import net.minecraft.client.texture.NativeImageBackedTexture;
+import net.minecraft.util.Identifier;
+
+/**
+ * Packs Twitch emotes into one shared texture so that an emote-heavy chat
+ * still draws from a single texture. Images are downloaded (or read from the
+ * disk cache) and decoded on a background thread; the atlas itself is only
+ * touched on the render thread. When every cell is taken, the least recently
+ * drawn emote gives up its cell.
+ */
+public final class EmoteAtlas {
+    public static final Identifier TEXTURE_ID = Identifier.of(StreamTweaks.MOD_ID, "emote_atlas");
+    public static final int ATLAS_SIZE = 512;
+    public static final int CELL_SIZE = 32;
+    private static final int CELLS_PER_ROW = ATLAS_SIZE / CELL_SIZE;
+    private static final int CELL_COUNT = CELLS_PER_ROW * CELLS_PER_ROW;
+
+    private static final EmoteAtlas INSTANCE = new EmoteAtlas();
+
+    private final ScheduledExecutorService loader = ThreadPools.singleScheduler("emote-loader");
+    private final EmoteDiskCache diskCache = new EmoteDiskCache(loader);
+    private final Set<String> requested = ConcurrentHashMap.newKeySet();
+    // Emotes whose last load failed; they may be requested again once their
+    // backoff has passed.
+    private final Map<String, BackoffPolicy> failures = new ConcurrentHashMap<>();
+    // Render thread only.
+    private final Map<String, Sprite> sprites = new LinkedHashMap<>(CELL_COUNT, 0.75F, true);
+    private NativeImageBackedTexture texture;
+    private int nextFreeCell;
+    private boolean dirty;
+
+    public record Sprite(int u, int v) {
+    }
+
+    private EmoteAtlas() {
+    }
+
+    public static EmoteAtlas getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts loading an emote in the background. Safe to call from any thread;
+     * repeated calls for the same id are ignored, except that a failed load
+     * is retried with a growing backoff.
+     */
+    public void prefetch(String emoteId) {
+        if (emoteId == null || !requested.add(emoteId)) {
+            return;
+        }
+
+        diskCache.load(emoteId)
+                .thenApplyAsync(EmoteAtlas::decode, loader)
+                .whenComplete((pixels, throwable) -> {
+                    if (throwable != null) {
+                        StreamTweaks.LOGGER.warn("Failed to load emote {}", emoteId, throwable);
+                        scheduleRetry(emoteId);
+                        return;
+                    }
+                    failures.remove(emoteId);
+                    MinecraftClient client = MinecraftClient.getInstance();
+                    if (client != null) {
+                        client.execute(() -> put(emoteId, pixels));
+                    }
+                });
+    }
+
+    private void scheduleRetry(String emoteId) {
+        BackoffPolicy backoff = failures.computeIfAbsent(emoteId,
+                id -> new ExponentialBackoffPolicy(2_000L, 300_000L, 2.0, 0.2));
+        long delayMillis;
+        synchronized (backoff) {
+            delayMillis = backoff.nextBackoffMillis();
+        }
+        loader.schedule(() -> requested.remove(emoteId), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the atlas cell of a loaded emote, or {@code null} while it is
+     * still loading. Render thread only.
+     */
+    public Sprite sprite(String emoteId) {
+        Sprite sprite = sprites.get(emoteId);
+        if (sprite == null) {
+            prefetch(emoteId);
+        }
+        return sprite;
+    }
+
+    /**
+     * Uploads the atlas if emotes were added since the last call. Render
+     * thread only.
+     */
+    public void flush() {
+        if (dirty && texture != null) {
+            texture.upload();
+            dirty = false;
+        }
+    }
+
+    private void put(String emoteId, int[] pixels) {
+        if (sprites.containsKey(emoteId)) {
+            return;
+        }
+
+        if (texture == null) {
+            texture = new NativeImageBackedTexture(TEXTURE_ID::toString, new NativeImage(ATLAS_SIZE, ATLAS_SIZE, true));
+            MinecraftClient.getInstance().getTextureManager().registerTexture(TEXTURE_ID, texture);
+        }
+
+        Sprite sprite;
+        if (nextFreeCell < CELL_COUNT) {
+            int cell = nextFreeCell++;
+            sprite = new Sprite((cell % CELLS_PER_ROW) * CELL_SIZE, (cell / CELLS_PER_ROW) * CELL_SIZE);
+        } else {
+            Iterator<Map.Entry<String, Sprite>> eldest = sprites.entrySet().iterator();
+            Map.Entry<String, Sprite> evicted = eldest.next();
+            eldest.remove();
+            // The evicted emote is loaded again (from disk) the next time it is drawn.
+            requested.remove(evicted.getKey());
+            sprite = evicted.getValue();
+        }
+
+        NativeImage image = texture.getImage();
+        for (int y = 0; y < CELL_SIZE; y++) {
+            for (int x = 0; x < CELL_SIZE; x++) {
+                image.setColorArgb(sprite.u() + x, sprite.v() + y, pixels[y * CELL_SIZE + x]);
+            }
+        }
+        sprites.put(emoteId, sprite);
+        dirty = true;
+    }
+
+    private static int[] decode(byte[] bytes) {
+        try (NativeImage source = NativeImage.read(new ByteArrayInputStream(bytes))) {
+            int width = source.getWidth();
+            int height = source.getHeight();
+            int[] pixels = new int[CELL_SIZE * CELL_SIZE];
+            for (int y = 0; y < CELL_SIZE; y++) {
+                for (int x = 0; x < CELL_SIZE; x++) {
+                    pixels[y * CELL_SIZE + x] = source.getColorArgb(x * width / CELL_SIZE, y * height / CELL_SIZE);
+                }
+            }
+            return pixels;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
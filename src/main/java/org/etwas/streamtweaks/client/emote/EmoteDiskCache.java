@@ -0,0 +1,132 @@
+package org.etwas.streamtweaks.client.emote;
+
+import static org.etwas.streamtweaks.StreamTweaks.LOGGER;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.etwas.streamtweaks.StreamTweaks;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+/**
+ * Stores downloaded emote images under the config directory. Image files are
+ * named by the SHA-256 of their content, and a small index maps emote ids to
+ * those hashes so identical images are only stored once.
+ */
+final class EmoteDiskCache {
+    private static final String EMOTE_URL = "https://static-cdn.jtvnw.net/emoticons/v2/%s/static/dark/1.0";
+
+    private final Path directory = FabricLoader.getInstance().getConfigDir().resolve(StreamTweaks.MOD_ID)
+            .resolve("emote-cache");
+    private final Path indexFile = directory.resolve("index.properties");
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final Executor executor;
+    private Properties index;
+
+    EmoteDiskCache(Executor executor) {
+        this.executor = executor;
+    }
+
+    CompletableFuture<byte[]> load(String emoteId) {
+        return CompletableFuture.supplyAsync(() -> readCached(emoteId), executor)
+                .thenCompose(cached -> cached != null
+                        ? CompletableFuture.completedFuture(cached)
+                        : download(emoteId));
+    }
+
+    private CompletableFuture<byte[]> download(String emoteId) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(EMOTE_URL.formatted(emoteId)))
+                .timeout(Duration.ofSeconds(15))
+                .GET()
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApplyAsync(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new IOException(
+                                "Emote %s download failed with status %d".formatted(emoteId, response.statusCode())));
+                    }
+                    byte[] bytes = response.body();
+                    store(emoteId, bytes);
+                    return bytes;
+                }, executor);
+    }
+
+    private synchronized byte[] readCached(String emoteId) {
+        String hash = index().getProperty(emoteId);
+        if (hash == null) {
+            return null;
+        }
+        Path file = directory.resolve(hash + ".png");
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            index.remove(emoteId);
+            return null;
+        }
+    }
+
+    private synchronized void store(String emoteId, byte[] bytes) {
+        try {
+            Files.createDirectories(directory);
+            String hash = sha256(bytes);
+            Path file = directory.resolve(hash + ".png");
+            if (!Files.exists(file)) {
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(tmp, bytes);
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            index().setProperty(emoteId, hash);
+            Path tmpIndex = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmpIndex)) {
+                index.store(out, null);
+            }
+            Files.move(tmpIndex, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache emote {} in {}", emoteId, directory, e);
+        }
+    }
+
+    private Properties index() {
+        if (index == null) {
+            index = new Properties();
+            if (Files.exists(indexFile)) {
+                try (InputStream in = Files.newInputStream(indexFile)) {
+                    index.load(in);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to read emote cache index {}", indexFile, e);
+                }
+            }
+        }
+        return index;
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
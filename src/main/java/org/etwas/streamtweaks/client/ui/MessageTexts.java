@@ -89,4 +89,55 @@ public final class MessageTexts {
         return streamTweaks().append(Text.translatable("message.stream-tweaks.alreadyDisconnected")
                 .formatted(ERROR_COLOR));
     }
+
+    public static MutableText overlayProfileHeader() {
+        return streamTweaks(Text.translatable("message.stream-tweaks.profileHeader")
+                .formatted(INFO_COLOR));
+    }
+
+    public static MutableText overlayProfilePhase(String phase, long p50Micros, long p99Micros, long maxMicros,
+            int samples) {
+        return Text.translatable("message.stream-tweaks.profilePhase", primaryText(phase), p50Micros, p99Micros,
+                maxMicros, samples).formatted(Formatting.GRAY);
+    }
+
+    public static MutableText chatLogFootprint(int messages, long kibibytes) {
+        return Text.translatable("message.stream-tweaks.profileLog", messages, kibibytes)
+                .formatted(Formatting.GRAY);
+    }
+
+    public static MutableText overlayProfileReset() {
+        return streamTweaks(Text.translatable("message.stream-tweaks.profileReset")
+                .formatted(INFO_COLOR));
+    }
+
+    public static MutableText searchHeader(String query, int count) {
+        return streamTweaks(Text.translatable("message.stream-tweaks.searchHeader", primaryText(query), count)
+                .formatted(INFO_COLOR));
+    }
+
+    public static MutableText searchResult(String time, String name, String body) {
+        return Text.translatable("message.stream-tweaks.searchResult", time, primaryText(name), body)
+                .formatted(Formatting.GRAY);
+    }
+
+    public static MutableText searchNoResults(String query) {
+        return streamTweaks(Text.translatable("message.stream-tweaks.searchNoResults", primaryText(query))
+                .formatted(WARNING_COLOR));
+    }
+
+    public static MutableText threadHeader(String rootName, int replies) {
+        return streamTweaks(Text.translatable("message.stream-tweaks.threadHeader", primaryText(rootName), replies)
+                .formatted(INFO_COLOR));
+    }
+
+    public static MutableText threadNotFound() {
+        return streamTweaks(Text.translatable("message.stream-tweaks.threadNotFound")
+                .formatted(WARNING_COLOR));
+    }
+
+    public static MutableText searchFailed() {
+        return streamTweaks(Text.translatable("message.stream-tweaks.searchFailed")
+                .formatted(ERROR_COLOR));
+    }
 }
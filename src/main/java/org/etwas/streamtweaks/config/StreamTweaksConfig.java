@@ -9,6 +9,53 @@ import me.shedaniel.autoconfig.annotation.Config;
 public class StreamTweaksConfig implements ConfigData {
     public boolean showStreamChat = true;
 
+    /**
+     * Reuse the previous frame's stream chat layout while nothing visible has
+     * changed (no new messages, no fading lines, same chat size and opacity).
+     */
+    public boolean cacheOverlayFrames = false;
+
+    /**
+     * Per-frame time budget for the stream chat overlay in microseconds.
+     * While the overlay stays over budget it shows fewer lines, then drops
+     * backgrounds, then text shadows. 0 disables the budget.
+     */
+    public int overlayFrameBudgetMicros = 0;
+
+    /**
+     * Heap budget in MiB for the in-memory stream chat log, shared by the
+     * shown channel and recently left ones. Older messages are dropped once
+     * their estimated size exceeds it. 0 keeps the last 200 messages of each
+     * channel instead.
+     */
+    public int chatLogMegabytes = 0;
+
+    /**
+     * Drop stream chat messages from the in-memory chat log once they are
+     * older than this many minutes, in addition to the memory or count
+     * limit. 0 keeps messages until that limit drops them.
+     */
+    public int chatMaxAgeMinutes = 0;
+
+    /**
+     * Save stream chat to disk under the config directory and restore the
+     * most recent messages when the game starts.
+     */
+    public boolean persistChatHistory = false;
+
+    /**
+     * Number of saved messages restored at startup when chat history is
+     * persisted.
+     */
+    public int historyReplayCount = 200;
+
+    /**
+     * Off-heap memory in MiB for messages that have scrolled out of the
+     * in-memory chat log, kept compressed so they can still be searched and
+     * scrolled to. 0 disables the archive.
+     */
+    public int archivedHistoryMegabytes = 16;
+
     /**
      * Automatically start Twitch authentication when joining a world if not already
      * authenticated.
@@ -1,6 +1,7 @@
 package org.etwas.streamtweaks.mixin;
 
 import org.etwas.streamtweaks.client.chat.TwitchChatOverlay;
+import org.etwas.streamtweaks.client.chat.VanillaChatLineTracker;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
@@ -16,4 +17,9 @@ public abstract class ChatHudMixin {
             boolean focused, CallbackInfo ci) {
         TwitchChatOverlay.getInstance().render((ChatHud) (Object) this, context, ticks, focused);
     }
+
+    @Inject(method = { "addVisibleMessage", "clear", "scroll", "resetScroll" }, at = @At("TAIL"))
+    private void streamTweaks$invalidateVanillaLines(CallbackInfo ci) {
+        VanillaChatLineTracker.getInstance().invalidate();
+    }
 }
@@ -0,0 +1,20 @@
+package org.etwas.streamtweaks.mixin;
+
+import org.etwas.streamtweaks.client.chat.TwitchChatOverlay;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+
+import net.minecraft.client.gui.screen.ChatScreen;
+
+@Mixin(ChatScreen.class)
+public abstract class ChatScreenMixin {
+    @Inject(method = "mouseScrolled", at = @At("HEAD"), cancellable = true)
+    private void streamTweaks$scrollOverlay(double mouseX, double mouseY, double horizontalAmount,
+            double verticalAmount, CallbackInfoReturnable<Boolean> cir) {
+        if (TwitchChatOverlay.getInstance().scroll(mouseX, mouseY, verticalAmount)) {
+            cir.setReturnValue(true);
+        }
+    }
+}
@@ -2,17 +2,23 @@ package org.etwas.streamtweaks.twitch.service;
 
 import java.net.URI;
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.etwas.streamtweaks.StreamTweaks;
+import org.etwas.streamtweaks.client.chat.ChatHistoryStore;
 import org.etwas.streamtweaks.client.chat.ChatMessage;
 import org.etwas.streamtweaks.client.chat.ChatMessage.Fragment;
 import org.etwas.streamtweaks.client.chat.ChatMessage.Source;
 import org.etwas.streamtweaks.client.chat.ChatMessageLog;
+import org.etwas.streamtweaks.client.chat.ChatterRegistry;
+import org.etwas.streamtweaks.client.chat.ChatterStyleCache;
+import org.etwas.streamtweaks.client.emote.EmoteAtlas;
 import org.etwas.streamtweaks.client.ui.MessageTexts;
+import org.etwas.streamtweaks.config.StreamTweaksConfig;
 import org.etwas.streamtweaks.twitch.api.HelixClient;
 import org.etwas.streamtweaks.twitch.api.HelixClient.TwitchUser;
 import org.etwas.streamtweaks.twitch.auth.AuthResult.AuthType;
@@ -27,7 +33,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
-import net.minecraft.client.MinecraftClient;
+import me.shedaniel.autoconfig.AutoConfig;
+
 import net.minecraft.text.TextColor;
 
 public final class TwitchService {
@@ -38,8 +45,15 @@ public final class TwitchService {
     private final TwitchOAuthClient oauthClient = new TwitchOAuthClient();
     private final AtomicReference<ConnectionState> connectionState = new AtomicReference<>();
 
+    private static final String CHAT_MESSAGE = "channel.chat.message";
+    private static final String CHAT_MESSAGE_DELETE = "channel.chat.message_delete";
+    private static final String CHAT_CLEAR_USER_MESSAGES = "channel.chat.clear_user_messages";
+    private static final String CHAT_CLEAR = "channel.chat.clear";
+    private static final List<String> CHAT_SUBSCRIPTION_TYPES = List.of(
+            CHAT_MESSAGE, CHAT_MESSAGE_DELETE, CHAT_CLEAR_USER_MESSAGES, CHAT_CLEAR);
+
     private record ConnectionState(String login, String displayName, String broadcasterUserId,
-            SubscriptionSpec chatSubscription) {
+            List<SubscriptionSpec> chatSubscriptions) {
     }
 
     private TwitchService() {
@@ -138,15 +152,24 @@ public final class TwitchService {
                         String userId = user.id();
 
                         StreamTweaks.LOGGER.info("Successfully found user: {} (ID: {})", user.displayName(), userId);
+                        // Show the channel's kept history while the subscription is created.
+                        ChatMessageLog.getInstance().activateChannel(Source.TWITCH, userId);
 
                         return subscribeToChat(userId)
-                                .thenApply(subscription -> {
+                                .thenApply(subscriptions -> {
                                     ConnectionState newState = new ConnectionState(normalizedLogin, user.displayName(),
-                                            userId, subscription);
+                                            userId, subscriptions);
                                     ConnectionState previousState = connectionState.getAndSet(newState);
-                                    if (previousState != null && previousState.chatSubscription() != null
-                                            && !previousState.chatSubscription().equals(subscription)) {
-                                        subscriptionManager.removeDesired(previousState.chatSubscription());
+                                    if (previousState != null) {
+                                        for (SubscriptionSpec previous : previousState.chatSubscriptions()) {
+                                            if (!subscriptions.contains(previous)) {
+                                                subscriptionManager.removeDesired(previous);
+                                            }
+                                        }
+                                        if (!userId.equals(previousState.broadcasterUserId())) {
+                                            ChatMessageLog.getInstance().parkChannel(Source.TWITCH,
+                                                    previousState.broadcasterUserId());
+                                        }
                                     }
 
                                     ChatMessageUtil
@@ -193,7 +216,7 @@ public final class TwitchService {
                 });
     }
 
-    public CompletableFuture<SubscriptionSpec> subscribeToChat(String broadcasterUserId) {
+    public CompletableFuture<List<SubscriptionSpec>> subscribeToChat(String broadcasterUserId) {
         if (broadcasterUserId == null || broadcasterUserId.trim().isEmpty()) {
             return CompletableFuture.failedFuture(new IllegalArgumentException("ブロードキャスターユーザーIDが指定されていません"));
         }
@@ -211,29 +234,30 @@ public final class TwitchService {
                                 .formatted(authenticatedUserId, currentUser.displayName()));
 
                         try {
-                            SubscriptionSpec chatSubscription = new SubscriptionSpec(
-                                    "channel.chat.message",
-                                    "1",
-                                    Map.of(
-                                            "broadcaster_user_id", normalizedBroadcasterUserId,
-                                            "user_id", authenticatedUserId));
+                            Map<String, Object> condition = Map.of(
+                                    "broadcaster_user_id", normalizedBroadcasterUserId,
+                                    "user_id", authenticatedUserId);
+                            List<SubscriptionSpec> chatSubscriptions = CHAT_SUBSCRIPTION_TYPES.stream()
+                                    .map(type -> new SubscriptionSpec(type, "1", condition))
+                                    .toList();
 
-                            subscriptionManager.addDesired(chatSubscription);
+                            chatSubscriptions.forEach(subscriptionManager::addDesired);
 
                             StreamTweaks.devLogger(
                                     "Chat subscription added: broadcaster=%s, user=%s".formatted(
                                             normalizedBroadcasterUserId, authenticatedUserId));
 
-                            return CompletableFuture.completedFuture(chatSubscription);
+                            return CompletableFuture.completedFuture(chatSubscriptions);
                         } catch (Exception e) {
                             String errorMsg = "チャット購読の設定に失敗しました: " + e.getMessage();
                             StreamTweaks.LOGGER.error(errorMsg, e);
-                            return CompletableFuture.<SubscriptionSpec>failedFuture(new RuntimeException(errorMsg, e));
+                            return CompletableFuture.<List<SubscriptionSpec>>failedFuture(
+                                    new RuntimeException(errorMsg, e));
                         }
                     } else {
                         String errorMsg = "認証されたユーザー情報の取得に失敗しました";
                         StreamTweaks.LOGGER.error(errorMsg);
-                        return CompletableFuture.<SubscriptionSpec>failedFuture(new RuntimeException(errorMsg));
+                        return CompletableFuture.<List<SubscriptionSpec>>failedFuture(new RuntimeException(errorMsg));
                     }
                 })
                 .exceptionally(throwable -> {
@@ -252,7 +276,7 @@ public final class TwitchService {
 
     public void disconnect(boolean silent) {
         ConnectionState previousState = connectionState.getAndSet(null);
-        if (previousState == null || previousState.chatSubscription() == null) {
+        if (previousState == null || previousState.chatSubscriptions().isEmpty()) {
             StreamTweaks.LOGGER.info("No active Twitch channel connection to disconnect.");
 
             if (!silent) {
@@ -263,8 +287,8 @@ public final class TwitchService {
 
         ChatMessageUtil.sendMessage(() -> MessageTexts.disconnecting());
 
-        subscriptionManager.removeDesired(previousState.chatSubscription());
-        ChatMessageLog.getInstance().clearSource(Source.TWITCH);
+        previousState.chatSubscriptions().forEach(subscriptionManager::removeDesired);
+        ChatMessageLog.getInstance().parkChannel(Source.TWITCH, previousState.broadcasterUserId());
         String channelName = previousState.displayName() != null ? previousState.displayName() : previousState.login();
         StreamTweaks.LOGGER.info("Disconnected from Twitch channel: {}", channelName);
 
@@ -274,7 +298,8 @@ public final class TwitchService {
     }
 
     private void handleEventSubNotification(EventNotification notification) {
-        if (!"channel.chat.message".equals(notification.type())) {
+        String type = notification.type();
+        if (!CHAT_SUBSCRIPTION_TYPES.contains(type)) {
             return;
         }
 
@@ -282,7 +307,7 @@ public final class TwitchService {
         try {
             event = JsonParser.parseString(notification.json()).getAsJsonObject();
         } catch (Exception e) {
-            StreamTweaks.LOGGER.error("channel.chat.message 通知の解析に失敗しました", e);
+            StreamTweaks.LOGGER.error("{} 通知の解析に失敗しました", type, e);
             return;
         }
 
@@ -296,6 +321,40 @@ public final class TwitchService {
             return;
         }
 
+        switch (type) {
+            case CHAT_MESSAGE -> handleChatMessage(event, state.broadcasterUserId());
+            case CHAT_MESSAGE_DELETE -> {
+                String messageId = optString(event, "message_id");
+                StreamTweaks.devLogger("Twitch chat message deleted: %s".formatted(messageId));
+                ChatMessageLog.getInstance().removeById(messageId);
+                if (persistsChatHistory()) {
+                    ChatHistoryStore.getInstance().appendDeletion(messageId);
+                }
+            }
+            case CHAT_CLEAR_USER_MESSAGES -> {
+                String targetUserId = optString(event, "target_user_id");
+                int removed = ChatMessageLog.getInstance().removeByChatter(Source.TWITCH, state.broadcasterUserId(),
+                        targetUserId);
+                if (persistsChatHistory()) {
+                    ChatHistoryStore.getInstance().appendChatterClear(Source.TWITCH, state.broadcasterUserId(),
+                            targetUserId);
+                }
+                StreamTweaks.devLogger("Twitch chat cleared for user %s (%d messages)"
+                        .formatted(optString(event, "target_user_login"), removed));
+            }
+            case CHAT_CLEAR -> {
+                StreamTweaks.devLogger("Twitch chat cleared");
+                ChatMessageLog.getInstance().clearChannel(Source.TWITCH, state.broadcasterUserId());
+                if (persistsChatHistory()) {
+                    ChatHistoryStore.getInstance().appendChannelClear(Source.TWITCH, state.broadcasterUserId());
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void handleChatMessage(JsonObject event, String channelId) {
         JsonObject messageObj = event.getAsJsonObject("message");
         if (messageObj == null) {
             return;
@@ -321,62 +380,84 @@ public final class TwitchService {
         }
 
         String rawColor = optString(event, "color");
-        TextColor twitchColor = adjustForReadability(parseTwitchColor(rawColor));
         String messageId = optString(event, "message_id");
         String chatterUserId = optString(event, "chatter_user_id");
+        TextColor twitchColor = ChatterStyleCache.getInstance().resolveColor(chatterUserId, rawColor);
         String chatterLogin = optString(event, "chatter_user_login");
         JsonArray fragments = messageObj.getAsJsonArray("fragments");
         var fragmentsList = new java.util.ArrayList<Fragment>();
         if (fragments != null) {
             for (JsonElement fragment : fragments) {
-                fragmentsList.add(
-                        switch (fragment.getAsJsonObject().get("type").getAsString()) {
-                            case "text" -> new ChatMessage.TextFragment(optString(fragment.getAsJsonObject(), "text"));
-                            case "emote" -> new ChatMessage.EmoteFragment(
-                                    optString(fragment.getAsJsonObject(), "id"),
-                                    optString(fragment.getAsJsonObject(), "emote_set_id"));
-                            case "mention" -> new ChatMessage.MentionFragment(
-                                    optString(fragment.getAsJsonObject(), "name"),
-                                    fragment.getAsJsonObject().has("start_index")
-                                            ? fragment.getAsJsonObject().get("start_index").getAsInt()
-                                            : -1,
-                                    fragment.getAsJsonObject().has("end_index")
-                                            ? fragment.getAsJsonObject().get("end_index").getAsInt()
-                                            : -1);
-                            case "cheermote" -> new ChatMessage.CheermoteFragment(
-                                    optString(fragment.getAsJsonObject(), "prefix"),
-                                    fragment.getAsJsonObject().has("amount")
-                                            ? fragment.getAsJsonObject().get("amount").getAsInt()
-                                            : -1,
-                                    fragment.getAsJsonObject().has("start_index")
-                                            ? fragment.getAsJsonObject().get("start_index").getAsInt()
-                                            : -1,
-                                    fragment.getAsJsonObject().has("end_index")
-                                            ? fragment.getAsJsonObject().get("end_index").getAsInt()
-                                            : -1);
-                            default -> new ChatMessage.TextFragment(optString(fragment.getAsJsonObject(), "text"));
-                        });
+                if (fragment.isJsonObject()) {
+                    fragmentsList.add(parseFragment(fragment.getAsJsonObject()));
+                }
             }
         }
 
         ChatMessage chatMessage = new ChatMessage(
                 messageId,
-                chatterUserId,
-                chatterLogin,
-                displayName,
+                ChatterRegistry.getInstance().intern(chatterUserId, chatterLogin, displayName),
                 text,
-                new Fragment[] {},
+                fragmentsList.toArray(Fragment[]::new),
                 isAction,
                 twitchColor,
                 Instant.now(),
-                Source.TWITCH);
+                System.nanoTime(),
+                Source.TWITCH,
+                channelId,
+                parseReply(event));
+
+        for (Fragment fragment : chatMessage.fragments()) {
+            if (fragment instanceof ChatMessage.EmoteFragment emote) {
+                EmoteAtlas.getInstance().prefetch(emote.emoteId());
+            }
+        }
 
-        MinecraftClient client = MinecraftClient.getInstance();
-        if (client == null) {
-            return;
+        ChatMessageLog.getInstance().add(chatMessage);
+        if (persistsChatHistory()) {
+            ChatHistoryStore.getInstance().append(chatMessage);
+        }
+    }
+
+    private static boolean persistsChatHistory() {
+        return AutoConfig.getConfigHolder(StreamTweaksConfig.class).getConfig().persistChatHistory;
+    }
+
+    private static Fragment parseFragment(JsonObject fragment) {
+        String text = optString(fragment, "text");
+        if (text == null) {
+            text = "";
+        }
+
+        String type = optString(fragment, "type");
+        if ("emote".equals(type) && fragment.get("emote") instanceof JsonObject emote
+                && optString(emote, "id") != null) {
+            return new ChatMessage.EmoteFragment(text, optString(emote, "id"), optString(emote, "emote_set_id"));
+        }
+        if ("mention".equals(type) && fragment.get("mention") instanceof JsonObject mention) {
+            String name = firstNonBlank(optString(mention, "user_name"),
+                    text.startsWith("@") ? text.substring(1) : text);
+            return new ChatMessage.MentionFragment(text, name, -1, -1);
+        }
+        if ("cheermote".equals(type) && fragment.get("cheermote") instanceof JsonObject cheermote) {
+            int bits = cheermote.has("bits") ? cheermote.get("bits").getAsInt() : -1;
+            return new ChatMessage.CheermoteFragment(text, optString(cheermote, "prefix"), bits, -1, -1);
         }
+        return new ChatMessage.TextFragment(text);
+    }
 
-        client.execute(() -> ChatMessageLog.getInstance().add(chatMessage));
+    private static ChatMessage.Reply parseReply(JsonObject event) {
+        JsonElement reply = event.get("reply");
+        if (reply == null || !reply.isJsonObject()) {
+            return null;
+        }
+        JsonObject replyObj = reply.getAsJsonObject();
+        return new ChatMessage.Reply(
+                optString(replyObj, "parent_message_id"),
+                optString(replyObj, "parent_user_login"),
+                optString(replyObj, "parent_user_name"),
+                optString(replyObj, "thread_message_id"),
+                optString(replyObj, "thread_user_name"));
     }
 
     private static String optString(JsonObject object, String key) {
@@ -401,44 +482,4 @@ public final class TwitchService {
         }
         return null;
     }
-
-    private static TextColor parseTwitchColor(String hex) {
-        if (hex == null || hex.isBlank()) {
-            return null;
-        }
-        String normalized = hex.startsWith("#") ? hex.substring(1) : hex;
-        if (normalized.length() != 6) {
-            return null;
-        }
-        try {
-            int rgb = Integer.parseUnsignedInt(normalized, 16);
-            return TextColor.fromRgb(rgb);
-        } catch (NumberFormatException e) {
-            return null;
-        }
-    }
-
-    private static TextColor adjustForReadability(TextColor color) {
-        if (color == null) {
-            return null;
-        }
-
-        int rgb = color.getRgb();
-        int r = (rgb >> 16) & 0xFF;
-        int g = (rgb >> 8) & 0xFF;
-        int b = rgb & 0xFF;
-
-        double luminance = 0.2126 * r + 0.7152 * g + 0.0722 * b;
-        double target = 160.0;
-        if (luminance >= target) {
-            return color;
-        }
-
-        double blend = Math.min(0.7, (target - luminance) / target);
-        int nr = (int) Math.round(r + (255 - r) * blend);
-        int ng = (int) Math.round(g + (255 - g) * blend);
-        int nb = (int) Math.round(b + (255 - b) * blend);
-
-        return TextColor.fromRgb((nr << 16) | (ng << 8) | nb);
-    }
 }